@@ -0,0 +1,35 @@
+package edu.buffalo.cse.cse486586.simpledht;
+
+import java.util.Arrays;
+
+/***
+ * Bench prints the timings LoadGenerator takes of the requests it sends, one
+ * line of throughput and the latency percentiles of a single request per
+ * kind. The hot path benchmarks are JMH benchmarks instead, see pom.xml.
+ */
+final class Bench {
+
+    private Bench() {
+    }
+
+    static void header() {
+        System.out.println(String.format("%-24s %10s %10s %10s %10s %10s %10s",
+                "benchmark", "ops/s", "p50 ns", "p90 ns", "p99 ns", "p99.9 ns", "max ns"));
+    }
+
+    // Prints the throughput and latency percentiles of a set of timings in nanoseconds
+    static void report(String name, long[] times, double throughput) {
+        if(times.length == 0) {
+            System.out.println(String.format("%-24s %10s", name, "no ops"));
+            return;
+        }
+        Arrays.sort(times);
+        System.out.println(String.format("%-24s %10.0f %10d %10d %10d %10d %10d", name, throughput,
+                percentile(times, 0.50), percentile(times, 0.90), percentile(times, 0.99),
+                percentile(times, 0.999), times[times.length - 1]));
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        return sorted[Math.min(sorted.length - 1, (int) (p * sorted.length))];
+    }
+}
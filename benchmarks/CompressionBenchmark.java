@@ -0,0 +1,205 @@
+package edu.buffalo.cse.cse486586.simpledht;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/***
+ * CompressionBenchmark weighs the compression ratio of each compressor
+ * against its throughput on a mix of values: short strings like the ones the
+ * tests insert, text, JSON-like records, random bytes that don't compress and
+ * large text values. For every kind of value and compressor it prints
+ *
+ *   ratio    stored bytes over original bytes, on disk and on the wire
+ *   pack     MB/s of original bytes compressed
+ *   expand   MB/s of original bytes expanded again
+ *   frame    MB/s through writing and reading batch frames of the values
+ *   log      MB/s of puts into a log store, and the size of the log after
+ *
+ * Usage: CompressionBenchmark [megabytes per run] [directory]
+ */
+public class CompressionBenchmark {
+
+    static final String[] WORDS = {"the", "node", "ring", "key", "value", "hash", "successor", "predecessor",
+            "join", "query", "insert", "delete", "replica", "quorum", "segment", "log", "of", "to", "and", "a"};
+
+    public static void main(String[] args) throws Exception {
+
+        int megabytes = (args.length > 0) ? Integer.parseInt(args[0]) : 32;
+        File root = (args.length > 1) ? new File(args[1]) : new File(System.getProperty("java.io.tmpdir"));
+        String[] names = {"none", "fast", "deflate"};
+
+        System.out.println(megabytes + " MB of each kind of value");
+        System.out.println(String.format("%-14s %-8s %8s %10s %10s %10s %10s %10s", "values", "codec",
+                "ratio", "pack MB/s", "expand", "frame", "log", "log MB"));
+        for(String kind : new String[] {"short", "text 2k", "json 8k", "binary 8k", "text 256k"}) {
+            List<byte[]> values = values(kind, megabytes * 1024 * 1024);
+            for(String name : names) {
+                run(kind, name, Compressor.named(name), values, new File(root, "bench-compression"));
+            }
+        }
+    }
+
+    private static void run(String kind, String name, Compressor compressor, List<byte[]> values, File dir)
+            throws Exception {
+
+        long original = 0;
+        for(byte[] value : values) {
+            original += value.length;
+        }
+        double megabytes = original / (1024.0 * 1024.0);
+
+        // Warm up the codec on the first values so the JIT has settled
+        for(int i = 0; i < Math.min(values.size(), 1000); i++) {
+            compressor.compress(values.get(i));
+        }
+
+        long start = System.nanoTime();
+        List<byte[]> packed = new ArrayList<byte[]>(values.size());
+        long stored = 0;
+        for(byte[] value : values) {
+            byte[] p = compressor.compress(value);
+            packed.add(p);
+            stored += (p == null) ? value.length : p.length;
+        }
+        double pack = megabytes / seconds(start);
+
+        start = System.nanoTime();
+        for(byte[] p : packed) {
+            if(p != null) {
+                Compressor.decompress(p, 0, p.length);
+            }
+        }
+        double expand = megabytes / seconds(start);
+
+        double frame = megabytes / frames(compressor, values);
+
+        delete(dir);
+        LogStorage storage = new LogStorage(dir, LogStorage.Durability.ASYNC, LogStorage.SYNC_WINDOW,
+                LogStorage.SYNC_BYTES, compressor);
+        start = System.nanoTime();
+        for(int i = 0; i < values.size(); i++) {
+            storage.put("key" + i, values.get(i));
+        }
+        double log = megabytes / seconds(start);
+        storage.close();
+        double logSize = size(dir) / (1024.0 * 1024.0);
+        delete(dir);
+
+        // Without a codec nothing is packed or expanded
+        boolean none = (compressor == Compressor.NONE);
+        System.out.println(String.format("%-14s %-8s %8.3f %10s %10s %10.1f %10.1f %10.1f", kind, name,
+                (double) stored / original, none ? "-" : String.format("%.1f", pack),
+                none ? "-" : String.format("%.1f", expand), frame, log, logSize));
+    }
+
+    // Returns the seconds taken to write and read all the values in batch frames of up to 256 values
+    private static double frames(Compressor compressor, List<byte[]> values) throws Exception {
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        Message decoded = new Message();
+        List<String> keys = new ArrayList<String>();
+        List<byte[]> batch = new ArrayList<byte[]>();
+        int batchBytes = 0;
+        long start = System.nanoTime();
+        for(int i = 0; i < values.size(); i++) {
+            keys.add("key" + i);
+            batch.add(values.get(i));
+            batchBytes += MessageCodec.batchSize("key" + i, values.get(i));
+            if(keys.size() == 256 || batchBytes >= MessageCodec.MAX_BATCH / 4 || i == values.size() - 1) {
+                Message msg = Message.of(Message.INSERT_BATCH, "5554", "5556", null, null, 0);
+                MessageCodec.writeBatch(msg, keys, batch);
+                bytes.reset();
+                MessageCodec.write(out, msg, compressor);
+                MessageCodec.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())), decoded);
+                keys.clear();
+                batch.clear();
+                batchBytes = 0;
+            }
+        }
+        return seconds(start);
+    }
+
+    // Builds values of the given kind adding up to about the given number of bytes
+    private static List<byte[]> values(String kind, int total) {
+
+        Random random = new Random(42);
+        List<byte[]> values = new ArrayList<byte[]>();
+        int length = 0;
+        for(int i = 0; length < total; i++) {
+            byte[] value;
+            if(kind.equals("short")) {
+                value = ("value" + random.nextInt(1000000)).getBytes(Message.UTF8);
+            }
+            else if(kind.equals("text 2k")) {
+                value = text(random, 2 * 1024);
+            }
+            else if(kind.equals("json 8k")) {
+                value = json(random, 8 * 1024);
+            }
+            else if(kind.equals("binary 8k")) {
+                value = new byte[8 * 1024];
+                random.nextBytes(value);
+            }
+            else {
+                value = text(random, 256 * 1024);
+            }
+            values.add(value);
+            length += value.length;
+        }
+        return values;
+    }
+
+    private static byte[] text(Random random, int size) {
+        StringBuilder builder = new StringBuilder(size + 16);
+        while(builder.length() < size) {
+            builder.append(WORDS[random.nextInt(WORDS.length)]);
+            builder.append(random.nextInt(10) == 0 ? ".\n" : " ");
+        }
+        return builder.substring(0, size).getBytes(Message.UTF8);
+    }
+
+    private static byte[] json(Random random, int size) {
+        StringBuilder builder = new StringBuilder(size + 128);
+        builder.append('[');
+        while(builder.length() < size) {
+            builder.append("{\"id\":").append(random.nextInt(1000000))
+                    .append(",\"node\":\"").append(5554 + 2 * random.nextInt(5))
+                    .append("\",\"hash\":\"").append(Long.toHexString(random.nextLong()))
+                    .append("\",\"name\":\"").append(WORDS[random.nextInt(WORDS.length)])
+                    .append("\",\"count\":").append(random.nextInt(100)).append("},");
+        }
+        return builder.substring(0, size).getBytes(Message.UTF8);
+    }
+
+    private static double seconds(long start) {
+        return (System.nanoTime() - start) / 1e9;
+    }
+
+    private static long size(File dir) {
+        long size = 0;
+        File[] files = dir.listFiles();
+        if(files != null) {
+            for(File file : files) {
+                size += file.length();
+            }
+        }
+        return size;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if(children != null) {
+            for(File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
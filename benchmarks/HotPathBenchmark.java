@@ -0,0 +1,371 @@
+package edu.buffalo.cse.cse486586.simpledht;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/***
+ * HotPathBenchmark times the paths every request of the DHT goes through:
+ * hashing a key onto the ring and comparing ring positions, finding the keys
+ * of an arc through the ring-order index and by rehashing, encoding and
+ * decoding a message frame as send() and DhtNode.Connection do, storing,
+ * reading and removing a key in the local store, and putting and getting keys
+ * across a ring of nodes on loopback.
+ *
+ * Every call is timed on its own in JMH sample mode, so the report has the
+ * percentiles of a single call next to the mean. Results are returned from
+ * the benchmark methods for JMH to consume.
+ *
+ * The ring is made of DhtNode instances on loopback ports, started as
+ * JoinBenchmark does, so the ring numbers cover routing, replication, the
+ * codec, the network stack and the store without the Android parts of the
+ * provider.
+ *
+ * Usage: java -jar target/benchmarks.jar HotPathBenchmark [-p keys=N] [-p nodes=N] [-p firstPort=N]
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HotPathBenchmark {
+
+    static final String VALUE = "value of a typical size for the test keys";
+    static final int CONVERGE_TIMEOUT = 60000;
+
+    /***
+     * The keys every benchmark cycles through, with their ring positions.
+     */
+    @State(Scope.Thread)
+    public static class Keys {
+
+        @Param("20000")
+        public int keys;
+
+        String[] k;
+        RingId[] ids;
+        byte[] raw = VALUE.getBytes(Message.UTF8);
+        int next;
+
+        @Setup
+        public void setUp() {
+            k = new String[keys];
+            ids = new RingId[keys];
+            for(int i = 0; i < keys; i++) {
+                k[i] = "key" + i;
+                ids[i] = RingId.of(k[i]);
+            }
+        }
+
+        // Returns the index of the next key, starting over after the last
+        int next() {
+            int i = next;
+            next = (i + 1 == keys) ? 0 : i + 1;
+            return i;
+        }
+    }
+
+    /***
+     * An index of every key and the arcs of a ring of nodes.
+     */
+    @State(Scope.Thread)
+    public static class Arcs {
+
+        @Param("5")
+        public int nodes;
+
+        KeyIndex index = new KeyIndex();
+        List<RingId> positions;
+        int next;
+
+        @Setup
+        public void setUp(Keys keys) {
+            for(String key : keys.k) {
+                index.add(key);
+            }
+            VirtualRing ring = new VirtualRing(DhtNode.VIRTUAL_NODES);
+            for(int i = 0; i < nodes; i++) {
+                ring.add(String.valueOf(5554 + 2 * i));
+            }
+            positions = ring.positions();
+        }
+
+        // Returns the index of the end of the next arc, the one before is its start
+        int next() {
+            next = (next + 1 == positions.size()) ? 1 : next + 1;
+            return next;
+        }
+    }
+
+    /***
+     * A frame encoded into a reused buffer and decoded into a reused message.
+     */
+    @State(Scope.Thread)
+    public static class Codec {
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        Message frame = Message.of(Message.INSERT, "11108", "11112", "key0", VALUE, 0);
+        Message decoded = new Message();
+        byte[] encoded;
+
+        @Setup
+        public void setUp() throws IOException {
+            MessageCodec.write(out, frame);
+            encoded = bytes.toByteArray();
+        }
+    }
+
+    /***
+     * A local store holding every key.
+     */
+    @State(Scope.Thread)
+    public static class Store {
+
+        File dir = new File(System.getProperty("java.io.tmpdir"), "bench-hot");
+        Storage storage;
+
+        @Setup
+        public void setUp(Keys keys) throws IOException {
+            delete(dir);
+            storage = new LogStorage(dir);
+            for(String key : keys.k) {
+                storage.put(key, keys.raw);
+            }
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+            storage.close();
+            delete(dir);
+        }
+    }
+
+    /***
+     * Puts the key the next remove will take back, outside of the timing, so
+     * every remove finds its key.
+     */
+    @State(Scope.Thread)
+    public static class Removal {
+
+        int i;
+
+        @Setup(Level.Invocation)
+        public void setUp(Keys keys, Store store) throws IOException {
+            i = keys.next();
+            store.storage.put(keys.k[i], keys.raw);
+        }
+    }
+
+    /***
+     * A ring of real nodes on loopback, each with its own store, that have
+     * found each other through the first one. Requests enter the ring at
+     * each node in turn, so most of them are routed to another node.
+     */
+    @State(Scope.Thread)
+    public static class Ring {
+
+        @Param("5")
+        public int nodes;
+
+        @Param("22000")
+        public int firstPort;
+
+        File root = new File(System.getProperty("java.io.tmpdir"), "bench-ring");
+        List<DhtNode> ring = new ArrayList<DhtNode>();
+        int next;
+
+        @Setup
+        public void setUp(Keys keys) throws Exception {
+            delete(root);
+            String host = InetAddress.getLoopbackAddress().getHostAddress();
+            byte[] peerHost = InetAddress.getLoopbackAddress().getAddress();
+            List<String> seeds = Collections.singletonList(host + ":" + firstPort);
+            NodeLog log = new NodeLog() {
+                @Override
+                public void v(String message) {
+                }
+
+                @Override
+                public void e(String message) {
+                }
+            };
+            for(int i = 0; i < nodes; i++) {
+                String id = host + ":" + (firstPort + i);
+                DhtNode node = new DhtNode(id, firstPort + i, peerHost, seeds,
+                        new LogStorage(new File(root, id.replace(':', '-'))), log);
+                node.start();
+                ring.add(node);
+            }
+            converge();
+            for(int i = 0; i < keys.keys; i++) {
+                if(put(keys.k[i], keys.raw) == 0) {
+                    throw new IllegalStateException("Couldn't store " + keys.k[i]);
+                }
+            }
+        }
+
+        // Waits until every node knows every other node
+        private void converge() throws InterruptedException {
+            long deadline = System.currentTimeMillis() + CONVERGE_TIMEOUT;
+            for(DhtNode node : ring) {
+                while(metric(node, "ring.nodes") < nodes) {
+                    if(System.currentTimeMillis() > deadline) {
+                        throw new IllegalStateException(node.id() + " didn't find every node in time");
+                    }
+                    Thread.sleep(100);
+                }
+            }
+        }
+
+        // Returns the node the next request enters the ring at
+        DhtNode entry() {
+            next = (next + 1 == ring.size()) ? 0 : next + 1;
+            return ring.get(next);
+        }
+
+        // Stores a key through the next node and waits for it to be acknowledged
+        int put(String key, byte[] value) {
+            return entry().insertAll(Collections.singletonList(key), Collections.singletonList(value));
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+            for(DhtNode node : ring) {
+                node.close();
+            }
+            delete(root);
+        }
+    }
+
+    @Benchmark
+    public RingId hash(Keys keys) {
+        return RingId.of(keys.k[keys.next()]);
+    }
+
+    @Benchmark
+    public boolean ringInterval(Keys keys) {
+        int i = keys.next();
+        int n = keys.keys;
+        return RingId.inOpen(keys.ids[i], keys.ids[(i + 1) % n], keys.ids[(i + 2) % n]);
+    }
+
+    // The index starts over once every key is in, so each add is of a new key
+    @Benchmark
+    public RingId indexAdd(Keys keys, Arcs arcs) {
+        int i = keys.next();
+        if(i == 0) {
+            arcs.index.clear();
+        }
+        return arcs.index.add(keys.k[i]);
+    }
+
+    @Benchmark
+    public List<String> arcFromIndex(Keys keys, Arcs arcs) {
+        int a = arcs.next();
+        List<String> found = new ArrayList<String>();
+        arcs.index.range(arcs.positions.get(a - 1), arcs.positions.get(a), found, null);
+        return found;
+    }
+
+    @Benchmark
+    public List<String> arcByRehashing(Keys keys, Arcs arcs) {
+        int a = arcs.next();
+        RingId from = arcs.positions.get(a - 1);
+        RingId to = arcs.positions.get(a);
+        List<String> found = new ArrayList<String>();
+        for(String key : keys.k) {
+            RingId hash = RingId.of(key);
+            if(RingId.inOpen(hash, from, to) || hash.equals(to)) {
+                found.add(key);
+            }
+        }
+        return found;
+    }
+
+    @Benchmark
+    public ByteArrayOutputStream encode(Codec codec) throws IOException {
+        codec.bytes.reset();
+        MessageCodec.write(codec.out, codec.frame);
+        return codec.bytes;
+    }
+
+    @Benchmark
+    public Message decode(Codec codec) throws IOException {
+        MessageCodec.read(new DataInputStream(new ByteArrayInputStream(codec.encoded)), codec.decoded);
+        return codec.decoded;
+    }
+
+    @Benchmark
+    public Storage store(Keys keys, Store store) throws IOException {
+        store.storage.put(keys.k[keys.next()], keys.raw);
+        return store.storage;
+    }
+
+    @Benchmark
+    public ByteBuffer get(Keys keys, Store store) throws IOException {
+        return store.storage.get(keys.k[keys.next()]);
+    }
+
+    @Benchmark
+    public boolean remove(Keys keys, Store store, Removal removal) throws IOException {
+        return store.storage.remove(keys.k[removal.i]);
+    }
+
+    @Benchmark
+    public int ringPut(Keys keys, Ring ring) {
+        return ring.put(keys.k[keys.next()], keys.raw);
+    }
+
+    @Benchmark
+    public ByteBuffer ringGet(Keys keys, Ring ring) {
+        int i = keys.next();
+        ByteBuffer value = ring.entry().query(keys.k[i], DhtNode.Consistency.ONE);
+        if(value == null) {
+            throw new IllegalStateException("Missing key " + keys.k[i]);
+        }
+        return value;
+    }
+
+    // Returns a metric of a node as a whole number, 0 if it has none yet
+    private static long metric(DhtNode node, String name) {
+        List<String> names = new ArrayList<String>();
+        List<String> values = new ArrayList<String>();
+        node.metrics(null, names, values);
+        int i = names.indexOf(name);
+        return (i < 0) ? 0 : (long) Double.parseDouble(values.get(i).split(" ")[0]);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if(children != null) {
+            for(File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
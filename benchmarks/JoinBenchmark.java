@@ -0,0 +1,201 @@
+package edu.buffalo.cse.cse486586.simpledht;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/***
+ * JoinBenchmark measures how long a ring takes to take in many nodes that
+ * join at the same moment. It starts a few seed nodes in this process on the
+ * loopback address, each with a host:port id, lets them find each other, then
+ * starts all joiners at once, each through the same seeds. It polls the view
+ * of every node until all of them know every node and prints
+ *
+ *   joined   when each joiner first knew every node, as percentiles
+ *   ring     when every node, seeds included, knew every node
+ *   traffic  join and gossip messages and bytes sent by all nodes meanwhile
+ *
+ * and then checks that keys written through one joiner read back through
+ * another, so the ring the views describe also routes.
+ *
+ * Usage: JoinBenchmark [joiners] [seeds] [first port] [directory]
+ */
+public class JoinBenchmark {
+
+    static final int POLL_INTERVAL = 100;
+    static final int TIMEOUT = 120000;
+
+    public static void main(String[] args) throws Exception {
+
+        int joiners = (args.length > 0) ? Integer.parseInt(args[0]) : 100;
+        int seedCount = (args.length > 1) ? Integer.parseInt(args[1]) : 3;
+        int firstPort = (args.length > 2) ? Integer.parseInt(args[2]) : 21000;
+        File root = new File((args.length > 3) ? new File(args[3]) : new File(System.getProperty("java.io.tmpdir")),
+                "bench-join");
+        delete(root);
+
+        String host = InetAddress.getLoopbackAddress().getHostAddress();
+        byte[] peerHost = InetAddress.getLoopbackAddress().getAddress();
+        List<String> seeds = new ArrayList<String>();
+        for(int i = 0; i < seedCount; i++) {
+            seeds.add(host + ":" + (firstPort + i));
+        }
+        NodeLog log = new NodeLog() {
+            @Override
+            public void v(String message) {
+            }
+
+            @Override
+            public void e(String message) {
+            }
+        };
+
+        List<DhtNode> nodes = new ArrayList<DhtNode>();
+        try {
+            for(String seed : seeds) {
+                DhtNode node = new DhtNode(seed, port(seed), peerHost, seeds,
+                        new FileStorage(new File(root, seed.replace(':', '-'))), log);
+                node.start();
+                nodes.add(node);
+            }
+            long seedTime = converge(nodes, seedCount, null);
+            System.out.println(seedCount + " seeds found each other in " + seedTime + " ms");
+
+            final List<DhtNode> joining = new ArrayList<DhtNode>();
+            for(int i = 0; i < joiners; i++) {
+                String id = host + ":" + (firstPort + seedCount + i);
+                joining.add(new DhtNode(id, port(id), peerHost, seeds,
+                        new FileStorage(new File(root, id.replace(':', '-'))), log));
+            }
+            nodes.addAll(joining);
+            long[] before = traffic(nodes);
+
+            // Every joiner is started by its own thread, all released together
+            final CountDownLatch go = new CountDownLatch(1);
+            final CountDownLatch started = new CountDownLatch(joiners);
+            for(final DhtNode node : joining) {
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            go.await();
+                            node.start();
+                        } catch (Exception e) {
+                            System.err.println("Can't start " + node.id() + ": " + e);
+                        }
+                        started.countDown();
+                    }
+                });
+                thread.setDaemon(true);
+                thread.start();
+            }
+            long[] joined = new long[joiners];
+            go.countDown();
+            long ring = converge(nodes, nodes.size(), joined);
+            started.await();
+            long[] after = traffic(nodes);
+
+            Arrays.sort(joined);
+            System.out.println(joiners + " joiners, " + nodes.size() + " nodes in the ring");
+            System.out.println(String.format("joined   p50 %d ms, p90 %d ms, p99 %d ms, max %d ms",
+                    joined[joiners / 2], joined[joiners * 9 / 10], joined[joiners * 99 / 100], joined[joiners - 1]));
+            System.out.println("ring     every node knew every node after " + ring + " ms");
+            System.out.println(String.format("traffic  %d joins, %d gossip rounds, %.1f KB sent, %d connections open",
+                    after[0] - before[0], after[1] - before[1], (after[2] - before[2]) / 1024.0, after[3]));
+
+            check(joining.get(0), joining.get(joiners - 1));
+        } finally {
+            for(DhtNode node : nodes) {
+                node.close();
+            }
+            delete(root);
+        }
+    }
+
+    /* Polls the views of the given nodes until each knows the given number of
+     * nodes, and returns the milliseconds that took. The time each node got
+     * there is put in times, if given, for the nodes past those already
+     * converged when it is called.
+     */
+    private static long converge(List<DhtNode> nodes, int size, long[] times) throws Exception {
+
+        long start = System.nanoTime();
+        int offset = (times == null) ? 0 : nodes.size() - times.length;
+        boolean[] done = new boolean[nodes.size()];
+        int remaining = nodes.size();
+        while(remaining > 0) {
+            long elapsed = (System.nanoTime() - start) / 1000000;
+            if(elapsed > TIMEOUT) {
+                throw new IllegalStateException(remaining + " nodes still missing members after " + TIMEOUT + " ms");
+            }
+            for(int i = 0; i < nodes.size(); i++) {
+                if(!done[i] && metric(nodes.get(i), "ring.nodes") == size) {
+                    done[i] = true;
+                    remaining--;
+                    if(times != null && i >= offset) {
+                        times[i - offset] = elapsed;
+                    }
+                }
+            }
+            Thread.sleep(POLL_INTERVAL);
+        }
+        return (System.nanoTime() - start) / 1000000;
+    }
+
+    // Returns the joins admitted, gossip rounds, bytes sent and connections open across all nodes
+    private static long[] traffic(List<DhtNode> nodes) {
+        long[] totals = new long[4];
+        for(DhtNode node : nodes) {
+            totals[0] += metric(node, "join.time.count");
+            totals[1] += metric(node, "membership.gossip");
+            totals[2] += metric(node, "bytes.out.sent") + metric(node, "bytes.in.sent");
+            totals[3] += metric(node, "sockets.out");
+        }
+        return totals;
+    }
+
+    // Returns a metric of a node as a whole number, 0 if it has none yet
+    private static long metric(DhtNode node, String name) {
+        List<String> names = new ArrayList<String>();
+        List<String> values = new ArrayList<String>();
+        node.metrics(null, names, values);
+        int i = names.indexOf(name);
+        return (i < 0) ? 0 : (long) Double.parseDouble(values.get(i).split(" ")[0]);
+    }
+
+    // Writes keys through one node and reads them back through another
+    private static void check(DhtNode writer, DhtNode reader) {
+        List<String> keys = new ArrayList<String>();
+        List<byte[]> values = new ArrayList<byte[]>();
+        for(int i = 0; i < 1000; i++) {
+            keys.add("key" + i);
+            values.add(("value" + i).getBytes(Message.UTF8));
+        }
+        int stored = writer.insertAll(keys, values);
+        int missing = 0;
+        for(String key : keys) {
+            if(reader.query(key, DhtNode.Consistency.ONE) == null) {
+                missing++;
+            }
+        }
+        System.out.println("routing  " + stored + " keys stored through " + writer.id() + ", "
+                + missing + " missing through " + reader.id());
+    }
+
+    private static int port(String address) {
+        return Integer.parseInt(address.substring(address.lastIndexOf(':') + 1));
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if(children != null) {
+            for(File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
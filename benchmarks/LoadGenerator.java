@@ -0,0 +1,281 @@
+package edu.buffalo.cse.cse486586.simpledht;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/***
+ * LoadGenerator starts a ring of NodeMain processes on this machine and drives
+ * a mix of reads and writes against it from a number of client threads. Each
+ * operation goes to a random node, which routes it to the owner of the key
+ * like any other request. Writes are sent as single key batches so they are
+ * acknowledged once stored. At the end it prints the throughput and the
+ * latency percentiles of reads and writes, followed by the request and
+ * storage timings each node reports through its metrics.
+ *
+ * Usage: LoadGenerator [options]
+ *   --nodes n       nodes in the ring, 5 by default
+ *   --threads n     client threads, 16 by default
+ *   --seconds n     length of the run, 10 by default
+ *   --reads f       fraction of operations that are reads, 0.9 by default
+ *   --keys n        number of distinct keys, 10000 by default
+ *   --size n        value size in bytes, 100 by default
+ *   --dir path      directory for the stores of the nodes, the temp directory by default
+ */
+public class LoadGenerator {
+
+    static final int FIRST_ID = 5554;
+
+    public static void main(String[] args) throws Exception {
+
+        int nodes = 5, threads = 16, seconds = 10, keys = 10000, size = 100;
+        double reads = 0.9;
+        File root = new File(System.getProperty("java.io.tmpdir"));
+        for(int i = 0; i < args.length; i++) {
+            String option = args[i];
+            String value = args[++i];
+            if(option.equals("--nodes")) {
+                nodes = Integer.parseInt(value);
+            }
+            else if(option.equals("--threads")) {
+                threads = Integer.parseInt(value);
+            }
+            else if(option.equals("--seconds")) {
+                seconds = Integer.parseInt(value);
+            }
+            else if(option.equals("--reads")) {
+                reads = Double.parseDouble(value);
+            }
+            else if(option.equals("--keys")) {
+                keys = Integer.parseInt(value);
+            }
+            else if(option.equals("--size")) {
+                size = Integer.parseInt(value);
+            }
+            else if(option.equals("--dir")) {
+                root = new File(value);
+            }
+            else {
+                throw new IllegalArgumentException("Unknown option " + option);
+            }
+        }
+
+        System.out.println(nodes + " nodes, " + threads + " threads, " + seconds + " s, "
+                + (int) (100 * reads) + "% reads, " + keys + " keys, " + size + " byte values");
+
+        root.mkdirs();
+        String java = new File(new File(System.getProperty("java.home"), "bin"), "java").getPath();
+        List<Process> processes = new ArrayList<Process>();
+        List<String> ids = new ArrayList<String>();
+        try {
+            for(int i = 0; i < nodes; i++) {
+                String id = String.valueOf(FIRST_ID + 2 * i);
+                File dir = new File(root, "load-node-" + id);
+                delete(dir);
+                ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                        NodeMain.class.getName(), id, "--dir", dir.getPath(), "--quiet");
+                builder.redirectErrorStream(true);
+                builder.redirectOutput(new File(root, "load-node-" + id + ".log"));
+                processes.add(builder.start());
+                ids.add(id);
+            }
+            // Nodes keep asking the seed to admit them until it listens, so all of them start at once
+            for(String id : ids) {
+                awaitListening(Integer.parseInt(id) * 2);
+            }
+            // Give the joins and handoffs time to settle
+            Thread.sleep(1000 + 100L * nodes);
+
+            run(ids, threads, seconds, reads, keys, size);
+        } finally {
+            for(Process process : processes) {
+                process.destroy();
+            }
+            for(Process process : processes) {
+                process.waitFor();
+            }
+            for(String id : ids) {
+                delete(new File(root, "load-node-" + id));
+            }
+        }
+    }
+
+    private static void run(final List<String> ids, int threads, int seconds, final double reads,
+                            final int keys, int size) throws Exception {
+
+        final byte[] value = new byte[size];
+        Arrays.fill(value, (byte) 'v');
+        final PeerPool pool = new PeerPool(InetAddress.getLoopbackAddress().getAddress());
+
+        // Every key is written once first so reads find it
+        List<String> k = new ArrayList<String>();
+        List<byte[]> v = new ArrayList<byte[]>();
+        for(int i = 0; i < keys; i++) {
+            k.add("key" + i);
+            v.add(value);
+            if(k.size() == 256 || i == keys - 1) {
+                Message batch = Message.of(Message.INSERT_BATCH, "1", String.valueOf(Integer.parseInt(ids.get(0)) * 2), null, null, 0);
+                MessageCodec.writeBatch(batch, k, v);
+                call(pool, batch);
+                k.clear();
+                v.clear();
+            }
+        }
+
+        final long end = System.currentTimeMillis() + seconds * 1000L;
+        final List<long[]> readTimes = Collections.synchronizedList(new ArrayList<long[]>());
+        final List<long[]> writeTimes = Collections.synchronizedList(new ArrayList<long[]>());
+        final int[] failures = {0};
+        List<Thread> clients = new ArrayList<Thread>();
+        long start = System.nanoTime();
+        for(int t = 0; t < threads; t++) {
+            final Random random = new Random(t);
+            Thread client = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Samples r = new Samples(), w = new Samples();
+                    int failed = 0;
+                    while(System.currentTimeMillis() < end) {
+                        String key = "key" + random.nextInt(keys);
+                        String port = String.valueOf(Integer.parseInt(ids.get(random.nextInt(ids.size()))) * 2);
+                        boolean read = random.nextDouble() < reads;
+                        Message request;
+                        if(read) {
+                            request = Message.of(Message.QUERY, "1", port, key, null, 0);
+                        }
+                        else {
+                            request = Message.of(Message.INSERT_BATCH, "1", port, null, null, 0);
+                            MessageCodec.writeBatch(request, Collections.singletonList(key), Collections.singletonList(value));
+                        }
+                        long begin = System.nanoTime();
+                        try {
+                            call(pool, request);
+                            (read ? r : w).add(System.nanoTime() - begin);
+                        } catch (IOException e) {
+                            failed++;
+                        }
+                    }
+                    readTimes.add(r.toArray());
+                    writeTimes.add(w.toArray());
+                    synchronized (failures) {
+                        failures[0] += failed;
+                    }
+                }
+            });
+            client.start();
+            clients.add(client);
+        }
+        for(Thread client : clients) {
+            client.join();
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        long[] r = merge(readTimes), w = merge(writeTimes);
+        System.out.println(String.format("%.0f ops/s overall, %d failed", (r.length + w.length) / elapsed, failures[0]));
+        Bench.header();
+        Bench.report("read", r, r.length / elapsed);
+        Bench.report("write", w, w.length / elapsed);
+
+        for(String id : ids) {
+            printMetrics(pool, id);
+        }
+        pool.close();
+    }
+
+    // Prints the p50 and p99 of every timing a node reports
+    private static void printMetrics(PeerPool pool, String id) throws IOException {
+        String port = String.valueOf(Integer.parseInt(id) * 2);
+        List<String> names = new ArrayList<String>();
+        List<byte[]> values = new ArrayList<byte[]>();
+        Message request = Message.of(Message.METRICS, "1", port, null, null, 0);
+        try {
+            pool.channel(port).call(request, names, values, 10000).get();
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+        System.out.println("node " + id);
+        for(int i = 0; i < names.size(); i++) {
+            String name = names.get(i);
+            if(name.endsWith(".p50") || name.endsWith(".p99") || name.startsWith("bytes.")) {
+                System.out.println(String.format("  %-32s %s", name, new String(values.get(i), Message.UTF8)));
+            }
+        }
+    }
+
+    private static Message call(PeerPool pool, Message request) throws IOException {
+        try {
+            return pool.channel(request.to).call(request, null, null, 10000).get();
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static void awaitListening(int port) throws InterruptedException, IOException {
+        long deadline = System.currentTimeMillis() + 30000;
+        while(true) {
+            Socket socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 1000);
+                return;
+            } catch (IOException e) {
+                if(System.currentTimeMillis() > deadline) {
+                    throw new IOException("Node on port " + port + " didn't start");
+                }
+                Thread.sleep(50);
+            } finally {
+                socket.close();
+            }
+        }
+    }
+
+    private static long[] merge(List<long[]> parts) {
+        int length = 0;
+        for(long[] part : parts) {
+            length += part.length;
+        }
+        long[] all = new long[length];
+        int at = 0;
+        for(long[] part : parts) {
+            System.arraycopy(part, 0, all, at, part.length);
+            at += part.length;
+        }
+        return all;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if(children != null) {
+            for(File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    /***
+     * A growable array of latencies in nanoseconds, one per client thread.
+     */
+    private static final class Samples {
+
+        private long[] _times = new long[1024];
+        private int _count;
+
+        void add(long time) {
+            if(_count == _times.length) {
+                _times = Arrays.copyOf(_times, 2 * _count);
+            }
+            _times[_count++] = time;
+        }
+
+        long[] toArray() {
+            return Arrays.copyOf(_times, _count);
+        }
+    }
+}
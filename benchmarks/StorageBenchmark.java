@@ -0,0 +1,176 @@
+package edu.buffalo.cse.cse486586.simpledht;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/***
+ * StorageBenchmark compares the log-structured store against the original
+ * file per key layout on the local file system. For each store it times
+ * writing, overwriting, reading and scanning a set of keys, reopening the
+ * store (the startup cost) and removing every key. The same is repeated for
+ * a few large values, which the log serves from a memory mapping.
+ *
+ * It then measures the write throughput of the log under each durability
+ * mode with a number of concurrent writers, along with how many writes every
+ * fsync covered on average, which is how well group commit coalesces them.
+ *
+ * Usage: StorageBenchmark [keys] [value size] [directory] [writer threads]
+ */
+public class StorageBenchmark {
+
+    static final int LARGE = 256 * 1024;
+
+    public static void main(String[] args) throws Exception {
+
+        int keys = (args.length > 0) ? Integer.parseInt(args[0]) : 20000;
+        int size = (args.length > 1) ? Integer.parseInt(args[1]) : 100;
+        File root = (args.length > 2) ? new File(args[2]) : new File(System.getProperty("java.io.tmpdir"));
+
+        System.out.println(keys + " keys, " + size + " byte values");
+        run("file-per-key", new File(root, "bench-files"), keys, size, false);
+        run("log", new File(root, "bench-log"), keys, size, true);
+
+        // Values past LogStorage.MAP_THRESHOLD are read from a mapping of the log
+        int large = Math.max(1, keys / 200);
+        System.out.println(large + " keys, " + LARGE + " byte values");
+        run("file-per-key", new File(root, "bench-files"), large, LARGE, false);
+        run("log", new File(root, "bench-log"), large, LARGE, true);
+
+        int threads = (args.length > 3) ? Integer.parseInt(args[3]) : 16;
+        for(LogStorage.Durability durability : LogStorage.Durability.values()) {
+            for(int writers : new int[] {1, threads}) {
+                commit(new File(root, "bench-commit"), durability, writers, keys, size);
+            }
+        }
+    }
+
+    // Times concurrent writers putting keys into a log with the given durability
+    private static void commit(File dir, LogStorage.Durability durability, int writers, int keys, int size)
+            throws Exception {
+
+        delete(dir);
+        final LogStorage storage = new LogStorage(dir, durability, LogStorage.SYNC_WINDOW, LogStorage.SYNC_BYTES);
+        final byte[] value = value(size, 'c');
+        // Syncing every write is slow, so the sync modes write fewer keys per writer
+        final int each = Math.max(1, ((durability == LogStorage.Durability.ASYNC) ? keys : keys / 10) / writers);
+        final IOException[] failure = {null};
+        List<Thread> threads = new ArrayList<Thread>();
+        long start = System.nanoTime();
+        for(int t = 0; t < writers; t++) {
+            final int first = t * each;
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for(int i = first; i < first + each; i++) {
+                            storage.put("key" + i, value);
+                        }
+                    } catch (IOException e) {
+                        failure[0] = e;
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for(Thread thread : threads) {
+            thread.join();
+        }
+        if(failure[0] != null) {
+            throw failure[0];
+        }
+        int count = each * writers;
+        String name = durability.name().toLowerCase() + " x" + writers;
+        report(name, "put", count, start);
+        long syncs = storage.syncs();
+        System.out.println(String.format("%-14s %-10s %8d fsyncs %8.1f writes per fsync", name, "", syncs,
+                (syncs == 0) ? 0.0 : (double) count / syncs));
+        storage.close();
+        delete(dir);
+    }
+
+    private static void run(String name, File dir, int keys, int size, boolean log) throws IOException {
+
+        delete(dir);
+        String[] k = new String[keys];
+        for(int i = 0; i < keys; i++) {
+            k[i] = "key" + i;
+        }
+        byte[] value = value(size, 'a');
+        byte[] update = value(size, 'b');
+        Random random = new Random(42);
+
+        Storage storage = open(dir, log);
+
+        long start = System.nanoTime();
+        for(int i = 0; i < keys; i++) {
+            storage.put(k[i], value);
+        }
+        report(name, "put", keys, start);
+
+        start = System.nanoTime();
+        for(int i = 0; i < keys; i++) {
+            storage.put(k[random.nextInt(keys)], update);
+        }
+        report(name, "overwrite", keys, start);
+
+        start = System.nanoTime();
+        for(int i = 0; i < keys; i++) {
+            if(storage.get(k[random.nextInt(keys)]) == null) {
+                throw new IllegalStateException("Missing key");
+            }
+        }
+        report(name, "get", keys, start);
+
+        start = System.nanoTime();
+        List<String> all = storage.keys();
+        for(String key : all) {
+            storage.get(key);
+        }
+        report(name, "scan @", all.size(), start);
+
+        storage.close();
+        start = System.nanoTime();
+        storage = open(dir, log);
+        report(name, "reopen", storage.keys().size(), start);
+
+        start = System.nanoTime();
+        for(int i = 0; i < keys; i++) {
+            storage.remove(k[i]);
+        }
+        report(name, "remove", keys, start);
+
+        storage.close();
+        delete(dir);
+    }
+
+    private static Storage open(File dir, boolean log) throws IOException {
+        return log ? new LogStorage(dir) : new FileStorage(dir);
+    }
+
+    private static void report(String name, String op, int count, long start) {
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println(String.format("%-14s %-10s %8d ops %10.3f s %12.0f ops/s",
+                name, op, count, seconds, count / seconds));
+    }
+
+    private static byte[] value(int size, char c) {
+        byte[] value = new byte[size];
+        Arrays.fill(value, (byte) c);
+        return value;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if(children != null) {
+            for(File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,45 @@
+package edu.buffalo.cse.cse486586.simpledht;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/***
+ * VirtualNodeBenchmark shows how evenly keys spread over the emulator nodes
+ * for a range of virtual node counts. For each count it prints the share of
+ * the ring every node owns and the share of a set of test keys it stores,
+ * each with its skew (largest share over mean share).
+ *
+ * Usage: VirtualNodeBenchmark [keys] [nodes]
+ */
+public class VirtualNodeBenchmark {
+
+    public static void main(String[] args) {
+
+        int keys = (args.length > 0) ? Integer.parseInt(args[0]) : 100000;
+        int nodes = (args.length > 1) ? Integer.parseInt(args[1]) : 5;
+
+        System.out.println(keys + " keys, " + nodes + " nodes");
+        for(int virtual = 1; virtual <= 256; virtual *= 2) {
+            VirtualRing ring = new VirtualRing(virtual);
+            for(int i = 0; i < nodes; i++) {
+                ring.add(String.valueOf(5554 + 2 * i));
+            }
+
+            Map<String, Double> counts = new HashMap<String, Double>();
+            for(String node : ring.nodes()) {
+                counts.put(node, 0.0);
+            }
+            for(int i = 0; i < keys; i++) {
+                String owner = ring.owner(RingId.of("key" + i));
+                counts.put(owner, counts.get(owner) + 1);
+            }
+
+            StringBuilder builder = new StringBuilder();
+            for(String node : ring.nodes()) {
+                builder.append(String.format(" %5.1f%%", 100 * counts.get(node) / keys));
+            }
+            System.out.println(String.format("%4d virtual  ring skew %5.2f  key skew %5.2f %s", virtual,
+                    VirtualRing.skew(ring.shares()), VirtualRing.skew(counts), builder));
+        }
+    }
+}
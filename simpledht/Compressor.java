@@ -0,0 +1,153 @@
+package edu.buffalo.cse.cse486586.simpledht;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/***
+ * The Compressor class compresses values on their way to disk and onto the
+ * wire. Values shorter than the threshold are left alone, since compressing
+ * them costs more time than it saves bytes, and so is any value that doesn't
+ * shrink by at least an eighth, such as one that is already compressed.
+ *
+ * A compressed value is self-describing and laid out as
+ *
+ *   byte  codec
+ *   int   length of the original value
+ *   the compressed bytes
+ *
+ * so it can be expanded without knowing how the writer was configured, and a
+ * node or store can change its codec without rewriting what it already has.
+ * Deflate is the only codec besides NONE, as it needs nothing outside the
+ * platform. Its level trades speed for ratio.
+ */
+class Compressor {
+
+    enum Codec {NONE, DEFLATE}
+
+    static final int THRESHOLD = 512;
+    static final int HEADER = 1 + 4;
+
+    static final Compressor NONE = new Compressor(Codec.NONE, Deflater.DEFAULT_COMPRESSION, Integer.MAX_VALUE);
+    static final Compressor FAST = new Compressor(Codec.DEFLATE, Deflater.BEST_SPEED, THRESHOLD);
+    static final Compressor DEFLATE = new Compressor(Codec.DEFLATE, Deflater.DEFAULT_COMPRESSION, THRESHOLD);
+
+    // Deflaters and inflaters hold native memory, so every thread keeps one of each
+    private static final ThreadLocal<Inflater> INFLATER = new ThreadLocal<Inflater>() {
+        @Override
+        protected Inflater initialValue() {
+            return new Inflater();
+        }
+    };
+
+    private final Codec _codec;
+    private final int _level;
+    private final int _threshold;
+    private final ThreadLocal<Deflater> _deflater = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater(_level);
+        }
+    };
+
+    Compressor(Codec codec, int level, int threshold) {
+        _codec = codec;
+        _level = level;
+        _threshold = threshold;
+    }
+
+    // Returns the compressor with the given name: none, fast or deflate
+    static Compressor named(String name) {
+        if(name.equalsIgnoreCase("none")) {
+            return NONE;
+        }
+        if(name.equalsIgnoreCase("fast")) {
+            return FAST;
+        }
+        if(name.equalsIgnoreCase("deflate")) {
+            return DEFLATE;
+        }
+        throw new IllegalArgumentException("Unknown compression " + name);
+    }
+
+    /* Returns the given bytes compressed, or null if they are shorter than
+     * the threshold or wouldn't shrink enough to be worth it.
+     */
+    byte[] compress(byte[] value, int offset, int length) {
+
+        if(_codec == Codec.NONE || length < _threshold) {
+            return null;
+        }
+        // Anything longer than this isn't worth keeping compressed
+        int limit = length - length / 8;
+        byte[] packed = new byte[limit];
+        Deflater deflater = _deflater.get();
+        deflater.reset();
+        deflater.setInput(value, offset, length);
+        deflater.finish();
+        int packedLength = HEADER;
+        while(!deflater.finished() && packedLength < limit) {
+            packedLength += deflater.deflate(packed, packedLength, limit - packedLength);
+        }
+        if(!deflater.finished()) {
+            return null;
+        }
+        packed[0] = (byte) _codec.ordinal();
+        ByteBuffer.wrap(packed).putInt(1, length);
+        return Arrays.copyOf(packed, packedLength);
+    }
+
+    byte[] compress(byte[] value) {
+        return compress(value, 0, value.length);
+    }
+
+    // Returns the original length of a compressed value
+    static int length(byte[] packed, int offset, int length) throws IOException {
+        if(length < HEADER) {
+            throw new IOException("Compressed value ends early");
+        }
+        int original = ByteBuffer.wrap(packed, offset, length).getInt(offset + 1);
+        if(original < 0) {
+            throw new IOException("Bad compressed length " + original);
+        }
+        return original;
+    }
+
+    /* Expands a compressed value into the start of the given array, which
+     * must have room for length(packed, offset, length) bytes.
+     */
+    static void decompress(byte[] packed, int offset, int length, byte[] value) throws IOException {
+
+        int original = length(packed, offset, length);
+        if(packed[offset] != Codec.DEFLATE.ordinal()) {
+            throw new IOException("Unknown codec " + packed[offset]);
+        }
+        Inflater inflater = INFLATER.get();
+        inflater.reset();
+        inflater.setInput(packed, offset + HEADER, length - HEADER);
+        try {
+            int done = 0;
+            while(done < original) {
+                int n = inflater.inflate(value, done, original - done);
+                if(n == 0 && (inflater.finished() || inflater.needsInput())) {
+                    break;
+                }
+                done += n;
+            }
+            if(done != original || !inflater.finished()) {
+                throw new IOException("Compressed value is corrupt");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Compressed value is corrupt", e);
+        }
+    }
+
+    static byte[] decompress(byte[] packed, int offset, int length) throws IOException {
+        byte[] value = new byte[length(packed, offset, length)];
+        decompress(packed, offset, length, value);
+        return value;
+    }
+}
@@ -0,0 +1,2309 @@
+package edu.buffalo.cse.cse486586.simpledht;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/***
+ * The DhtNode class is a single node of the Distributed Hash Table with no
+ * ties to Android: routing, ring membership, replication, messaging and the
+ * local store. SimpleDhtProvider runs one on an emulator, NodeMain runs one
+ * as a plain Java process. A node id is either the host:port address the
+ * node is reached at, or an emulator id, in which case the node is reached at
+ * twice its id as a port on the peer host, the address scheme of the emulator
+ * network. A node listens on the port it is given, which is the same port
+ * outside the emulator, and joins the ring through any of its seeds.
+ */
+class DhtNode {
+
+    // How many replicas of a key must answer a read
+    enum Consistency { ONE, QUORUM, ALL }
+
+    // Threads reading connections and serving requests, open connections aren't limited by either
+    static final int SERVER_THREADS = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+    static final int REQUEST_THREADS = 128;
+    // Initial size of the read and write buffers of a connection
+    static final int BUFFER_SIZE = 8 * 1024;
+    static final ReadCache.Policy CACHE_POLICY = ReadCache.Policy.TINY_LFU;
+    static final int CACHE_SIZE = 4096;
+    static final int PAGE_SIZE = 256;
+    static final int VIRTUAL_NODES = 64;
+    static final int REPLICATION = 3;
+    static final Consistency READ_CONSISTENCY = Consistency.ONE;
+    static final int CALL_TIMEOUT = 10000;
+    static final int LOOKUP_TIMEOUT = 5000;
+    static final int LOOKUP_ATTEMPTS = 3;
+    static final int LOOKUP_BACKOFF = 100;
+    static final int LOOKUP_THREADS = 8;
+    static final int TRACE_SAMPLE = 100;
+    static final int REDIRECT_INTERVAL = 1000;
+    static final int HEARTBEAT_INTERVAL = 1000;
+    static final int FAILURE_TIMEOUT = 4000;
+    static final int MONITORS = 3;
+    static final int REJOIN_INTERVAL = 10000;
+    static final int DEAD_TTL = 60000;
+    private final String _local;
+    private final List<String> _seeds;
+    private final RingId _hashL;
+    private final int _serverPort;
+    private final NodeLog _log;
+    private final ConcurrentHashMap<String, RingId> _nodeIds = new ConcurrentHashMap<String, RingId>();
+    // When each sender was last redirected to each owner, keyed by both ids
+    private final ConcurrentHashMap<String, Long> _redirects = new ConcurrentHashMap<String, Long>();
+    // When each node lately found dead was dropped, so gossip from nodes that haven't dropped it yet is ignored
+    private final ConcurrentHashMap<String, Long> _dead = new ConcurrentHashMap<String, Long>();
+    // The latest incarnation heard of each node, see entry()
+    private final ConcurrentHashMap<String, Long> _incarnations = new ConcurrentHashMap<String, Long>();
+    private volatile long _incarnation;
+    private volatile long _lastJoin;
+    private long _lastBeat;
+    private final VirtualRing _view = new VirtualRing(VIRTUAL_NODES);
+    private final Storage _storage;
+    private final KeyIndex _index = new KeyIndex();
+    private final ReadCache _cache = ReadCache.create(CACHE_POLICY, CACHE_SIZE);
+    private final PeerPool _pool;
+    private ServerSocketChannel _server;
+    private Selector _selector;
+    private Thread _serverThread;
+    private volatile boolean _closing;
+    private final Set<Connection> _accepted = Collections.newSetFromMap(new ConcurrentHashMap<Connection, Boolean>());
+    // Connections whose selector interest has to be set again, see Connection.interest()
+    private final Queue<Connection> _changed = new ConcurrentLinkedQueue<Connection>();
+    private final ThreadPoolExecutor _connections = new ThreadPoolExecutor(SERVER_THREADS, SERVER_THREADS,
+            PeerPool.IDLE_TIMEOUT, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+    private final ThreadPoolExecutor _requests = new ThreadPoolExecutor(0, REQUEST_THREADS,
+            PeerPool.IDLE_TIMEOUT, TimeUnit.MILLISECONDS, new SynchronousQueue<Runnable>(),
+            new ThreadPoolExecutor.CallerRunsPolicy());
+    private final ScheduledThreadPoolExecutor _lookups = new ScheduledThreadPoolExecutor(LOOKUP_THREADS);
+    private final ThreadPoolExecutor _sends = new ThreadPoolExecutor(1, 1,
+            PeerPool.IDLE_TIMEOUT, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+    // Moves keys after the ring changed, see rebalance()
+    private final ThreadPoolExecutor _moves = new ThreadPoolExecutor(1, 1,
+            PeerPool.IDLE_TIMEOUT, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+    private final Random _random = new Random();
+    private final Metrics _metrics = new Metrics();
+    private final FailureDetector _detector = new FailureDetector(FAILURE_TIMEOUT);
+    private final AtomicLong _traced = new AtomicLong();
+    private volatile int _traceSample = TRACE_SAMPLE;
+    private volatile Compressor _compressor = Compressor.NONE;
+
+    /* Creates a node with the given id that listens on the given port and
+     * reaches nodes with emulator ids on the peer host. Once started it joins
+     * the ring through the given seeds, which may include itself.
+     */
+    DhtNode(String local, int serverPort, byte[] peerHost, List<String> seeds, Storage storage, NodeLog log) {
+        _local = local;
+        _hashL = nodeId(local);
+        _serverPort = serverPort;
+        _pool = new PeerPool(peerHost);
+        _seeds = new ArrayList<String>(seeds);
+        _storage = storage;
+        _log = log;
+        _connections.allowCoreThreadTimeOut(true);
+        _lookups.setKeepAliveTime(PeerPool.IDLE_TIMEOUT, TimeUnit.MILLISECONDS);
+        _lookups.allowCoreThreadTimeOut(true);
+        _sends.allowCoreThreadTimeOut(true);
+        _moves.allowCoreThreadTimeOut(true);
+        gauges();
+    }
+
+    // Registers the queue depths, connection counts and traffic of the node with its metrics
+    private void gauges() {
+        _metrics.gauge("queue.sends", new Metrics.Gauge() {
+            @Override
+            public long value() {
+                return _sends.getQueue().size();
+            }
+        });
+        _metrics.gauge("queue.moves", new Metrics.Gauge() {
+            @Override
+            public long value() {
+                return _moves.getQueue().size();
+            }
+        });
+        _metrics.gauge("queue.lookups", new Metrics.Gauge() {
+            @Override
+            public long value() {
+                return _lookups.getQueue().size();
+            }
+        });
+        _metrics.gauge("requests.active", new Metrics.Gauge() {
+            @Override
+            public long value() {
+                return _requests.getActiveCount();
+            }
+        });
+        _metrics.gauge("sockets.in", new Metrics.Gauge() {
+            @Override
+            public long value() {
+                return _accepted.size();
+            }
+        });
+        _metrics.gauge("sockets.out", new Metrics.Gauge() {
+            @Override
+            public long value() {
+                return _pool.size();
+            }
+        });
+        _metrics.gauge("ring.nodes", new Metrics.Gauge() {
+            @Override
+            public long value() {
+                return _view.nodes().size();
+            }
+        });
+        _metrics.gauge("bytes.out.sent", new Metrics.Gauge() {
+            @Override
+            public long value() {
+                return _pool.bytesSent();
+            }
+        });
+        _metrics.gauge("bytes.out.received", new Metrics.Gauge() {
+            @Override
+            public long value() {
+                return _pool.bytesReceived();
+            }
+        });
+    }
+
+    /* Sets how often per-operation events are traced to the log, one in every
+     * sample of them. Zero switches tracing off.
+     */
+    void setTraceSample(int sample) {
+        _traceSample = sample;
+    }
+
+    /* Sets how the values of the frames this node sends are compressed, both
+     * requests and responses. Frames are read whatever the compressor.
+     */
+    void setCompressor(Compressor compressor) {
+        _compressor = compressor;
+        _pool.setCompressor(compressor);
+    }
+
+    // Decides whether the current event is one of the sampled ones
+    private boolean trace() {
+        int sample = _traceSample;
+        return sample > 0 && _traced.incrementAndGet() % sample == 0;
+    }
+
+    /* Adds the metrics of the given node, or of this node if it is null, to
+     * the given lists as rows of names and values. Returns false if another
+     * node's metrics couldn't be read.
+     */
+    boolean metrics(String node, List<String> names, List<String> values) {
+        if(node == null || node.equals(_local)) {
+            _metrics.snapshot(names, values);
+            return true;
+        }
+        try {
+            List<byte[]> raw = new ArrayList<byte[]>();
+            call(Message.of(Message.METRICS, _local, addressOf(node), null, null, 0), names, raw, CALL_TIMEOUT);
+            for(byte[] value : raw) {
+                values.add(new String(value, Message.UTF8));
+            }
+            return true;
+        } catch (IOException e) {
+            _log.e("Can't read metrics of " + node);
+            return false;
+        }
+    }
+
+    /* Indexes the stored keys by ring position, starts accepting connections
+     * and asks a seed to admit this node to the ring, see join(). From then on
+     * the ring is stabilized every HEARTBEAT_INTERVAL, see stabilize().
+     */
+    void start() throws IOException {
+
+        _log.v("node " + _local + " hash is " + _hashL);
+        learn(_local);
+        _index.addAll(_storage.keys());
+        _selector = Selector.open();
+        _server = ServerSocketChannel.open();
+        _server.socket().setReuseAddress(true);
+        _server.socket().bind(new InetSocketAddress(_serverPort));
+        _server.configureBlocking(false);
+        _server.register(_selector, SelectionKey.OP_ACCEPT);
+        _serverThread = new Thread(new ServerTask(), "server " + _serverPort);
+        _serverThread.setDaemon(true);
+        _serverThread.start();
+
+        join();
+        _lookups.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                stabilize();
+            }
+        }, HEARTBEAT_INTERVAL, HEARTBEAT_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    // Stops accepting connections and closes the connections to and from other nodes and the store
+    void close() throws IOException {
+        if(_serverThread != null) {
+            _closing = true;
+            _selector.wakeup();
+            try {
+                _serverThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        _connections.shutdown();
+        _pool.close();
+        _lookups.shutdownNow();
+        _sends.shutdown();
+        _moves.shutdownNow();
+        _storage.close();
+    }
+
+    String id() {
+        return _local;
+    }
+
+    /* Deletes a key from the ring. The special characters '@' and '*' delete
+     * all entries on this node and all entries across the entire ring,
+     * respectively. A '*' delete clears every node at once and returns the
+     * number of nodes that were cleared.
+     */
+    int delete(String key) {
+        long start = System.nanoTime();
+        int deleted = delete(key, 0, null);
+        _metrics.time("delete.time", start);
+        return deleted;
+    }
+
+    /* Routes a delete for the given key, counting the hops taken so far. From
+     * is the id of the node that routed it here, if any.
+     */
+    private int delete(String key, int hops, String from) {
+
+        if(key.equals("@")) {
+            return remove(key);
+        }
+        if(key.equals("*")) {
+            int cleared = remove(key);
+            for(Message reply : fanOut(Message.CLEAR, null).values()) {
+                if(reply != null && "1".equals(reply.value())) {
+                    cleared++;
+                }
+            }
+            return cleared;
+        }
+
+        String owner = _view.owner(RingId.of(key));
+        if(_local.equals(owner)) {
+            return remove(key, hops);
+        }
+        redirect(from, owner);
+        sendLater(Message.of(Message.DELETE, _local, addressOf(owner), key, null, hops + 1));
+        return 2;
+    }
+
+    /* Inserts a key, storing it here if this node owns it and sending it on
+     * towards its owner otherwise. Doesn't wait for the owner to store it.
+     * Throws IllegalArgumentException for a value over MessageCodec.MAX_VALUE,
+     * which couldn't be sent to the other replicas.
+     */
+    void insert(String key, byte[] value) {
+        checkValue(key, value);
+        long start = System.nanoTime();
+        insert(key, value, 0, null);
+        _metrics.time("insert.time", start);
+    }
+
+    // Rejects a value too large to fit in a frame
+    private static void checkValue(String key, byte[] value) {
+        if(value != null && value.length > MessageCodec.MAX_VALUE) {
+            throw new IllegalArgumentException("Value of " + key + " is " + value.length
+                    + " bytes, the most a key can hold is " + MessageCodec.MAX_VALUE);
+        }
+    }
+
+    /* Routes an insert for the given key, counting the hops taken so far. From
+     * is the id of the node that routed it here, if any.
+     */
+    private void insert(String key, byte[] value, int hops, String from) {
+
+        String owner = _view.owner(RingId.of(key));
+        if(_local.equals(owner)) {
+            store(key, value, hops);
+        }
+        else {
+            redirect(from, owner);
+            Message msg = Message.of(Message.INSERT, _local, addressOf(owner), key, null, hops + 1);
+            msg.setBytes(value);
+            sendLater(msg);
+        }
+    }
+
+    /* Inserts many keys at once. Keys are hashed and grouped by the node they
+     * are sent to, so each destination receives a single batch message instead
+     * of one insert per key, and the keys owned by this node are stored with a
+     * single storage write. Unlike insert() the call waits for every batch to
+     * be acknowledged. Keys that couldn't be stored are logged and the number
+     * of stored keys is returned. Throws IllegalArgumentException before
+     * storing any key if one of the values is over MessageCodec.MAX_VALUE.
+     */
+    int insertAll(List<String> keys, List<byte[]> vals) {
+
+        for(int i = 0; i < keys.size(); i++) {
+            checkValue(keys.get(i), vals.get(i));
+        }
+        long start = System.nanoTime();
+        byte[] outcomes = insertAll(keys, vals, 0, null);
+        _metrics.time("insert_batch.time", start);
+        int stored = 0;
+        for(int i = 0; i < outcomes.length; i++) {
+            if(outcomes[i] == Message.STORED) {
+                stored++;
+            }
+            else {
+                _log.e("Bulk insert of " + keys.get(i) + " failed");
+            }
+        }
+        _log.v("bulk insert stored " + stored + " of " + outcomes.length + " keys");
+        return stored;
+    }
+
+    /* Routes a batch of inserts. Keys owned by this node are stored at once,
+     * the rest are grouped by next hop and sent on as one INSERT_BATCH per
+     * node, which regroups them in turn, split so no batch passes
+     * MessageCodec.MAX_BATCH bytes. Returns the outcome of every key in the
+     * order given. From is the id of the node that routed it here, if any.
+     */
+    private byte[] insertAll(List<String> keys, List<byte[]> values, int hops, String from) {
+
+        byte[] outcomes = new byte[keys.size()];
+        List<Integer> local = new ArrayList<Integer>();
+        Map<String, List<Integer>> remote = new LinkedHashMap<String, List<Integer>>();
+        for(int i = 0; i < keys.size(); i++) {
+            String owner = _view.owner(RingId.of(keys.get(i)));
+            if(_local.equals(owner)) {
+                local.add(i);
+            }
+            else {
+                redirect(from, owner);
+                String address = addressOf(owner);
+                List<Integer> group = remote.get(address);
+                if(group == null) {
+                    group = new ArrayList<Integer>();
+                    remote.put(address, group);
+                }
+                group.add(i);
+            }
+        }
+
+        if(!local.isEmpty()) {
+            List<String> localKeys = select(keys, local);
+            List<byte[]> localValues = select(values, local);
+            recordHops("batch insert", local.size() + " keys", hops);
+            byte outcome = storeAll(localKeys, localValues) ? Message.STORED : Message.FAILED;
+            if(outcome == Message.STORED) {
+                replicateAll(localKeys, localValues);
+            }
+            for(int i : local) {
+                outcomes[i] = outcome;
+            }
+        }
+
+        for(Map.Entry<String, List<Integer>> group : remote.entrySet()) {
+            for(List<Integer> indices : split(keys, values, group.getValue())) {
+                Message request = Message.of(Message.INSERT_BATCH, _local, group.getKey(), null, null, hops + 1);
+                MessageCodec.writeBatch(request, select(keys, indices), select(values, indices));
+                try {
+                    Message reply = call(request, null, null, CALL_TIMEOUT);
+                    for(int i = 0; i < indices.size(); i++) {
+                        outcomes[indices.get(i)] = (i < reply.valueLength) ? reply.value[i] : Message.FAILED;
+                    }
+                } catch (IOException e) {
+                    _log.e("Batch of " + indices.size() + " keys to " + group.getKey() + " failed");
+                    for(int i : indices) {
+                        outcomes[i] = Message.FAILED;
+                    }
+                }
+            }
+        }
+
+        return outcomes;
+    }
+
+    // Returns the elements at the given positions of a list
+    private static <T> List<T> select(List<T> list, List<Integer> indices) {
+        List<T> selected = new ArrayList<T>(indices.size());
+        for(int i : indices) {
+            selected.add(list.get(i));
+        }
+        return selected;
+    }
+
+    // Splits the given positions into runs whose entries fit in one batch of MessageCodec.MAX_BATCH bytes
+    private static List<List<Integer>> split(List<String> keys, List<byte[]> values, List<Integer> indices) {
+        List<List<Integer>> runs = new ArrayList<List<Integer>>();
+        List<Integer> run = new ArrayList<Integer>();
+        int bytes = 0;
+        for(int i : indices) {
+            int size = MessageCodec.batchSize(keys.get(i), values.get(i));
+            if(!run.isEmpty() && bytes + size > MessageCodec.MAX_BATCH) {
+                runs.add(run);
+                run = new ArrayList<Integer>();
+                bytes = 0;
+            }
+            run.add(i);
+            bytes += size;
+        }
+        if(!run.isEmpty()) {
+            runs.add(run);
+        }
+        return runs;
+    }
+
+    /* Reads a single key from the ring at the given consistency level. Returns
+     * its value, or null if the key doesn't exist or couldn't be read in time.
+     * A value read from this node may be a view of the store and must not be
+     * written to.
+     */
+    ByteBuffer query(String key, Consistency level) {
+        long start = System.nanoTime();
+        ByteBuffer value = lookup(key, new int[] {0}, System.currentTimeMillis() + LOOKUP_TIMEOUT, level, null);
+        _metrics.time("query.time", start);
+        return value;
+    }
+
+    /* Routes a single key query that has to be answered before the deadline.
+     * Any of the REPLICATION nodes holding the key can answer it. At ONE the
+     * local copy is read if this node holds one, otherwise a random replica is
+     * asked and the others are tried in turn if it fails. At QUORUM and ALL
+     * several replicas are asked at once, see quorum(). The hop count taken
+     * so far is passed in hops[0] and replaced with the total number of hops
+     * the lookup needed, so the count can be relayed back along the path.
+     * From is the id of the node that routed it here, if any.
+     */
+    private ByteBuffer lookup(String key, int[] hops, long deadline, Consistency level, String from) {
+
+        List<String> replicas = _view.replicas(RingId.of(key), REPLICATION);
+        if(level == Consistency.ONE) {
+            if(replicas.contains(_local)) {
+                return get(key, hops[0]);
+            }
+            redirect(from, replicas.get(0));
+            int first = _random.nextInt(replicas.size());
+            List<String> addresses = new ArrayList<String>(replicas.size());
+            for(int i = 0; i < replicas.size(); i++) {
+                addresses.add(addressOf(replicas.get((first + i) % replicas.size())));
+            }
+            return forward(key, addresses, hops, deadline);
+        }
+
+        int needed = (level == Consistency.ALL) ? replicas.size() : replicas.size() / 2 + 1;
+        return quorum(key, replicas, needed, hops, deadline);
+    }
+
+    /* Asks every replica of a key for its value at once and waits until the
+     * given number of them have answered or the deadline passes. The value
+     * given by most of the answers is returned, a missing key counting as a
+     * value of its own. Writes go through the owner of a key and reach the
+     * other replicas in order, so answers only differ while a write is on its
+     * way. A read that gets too few answers is logged and comes back as null.
+     */
+    private ByteBuffer quorum(String key, List<String> replicas, int needed, int[] hops, long deadline) {
+
+        final List<ByteBuffer> answers = new ArrayList<ByteBuffer>();
+        final int[] failed = {0};
+        final int[] hopMax = {hops[0]};
+        for(String replica : replicas) {
+            if(replica.equals(_local)) {
+                ByteBuffer local = get(key, hops[0]);
+                synchronized (answers) {
+                    answers.add(local);
+                }
+                continue;
+            }
+            forwardAsync(key, Collections.singletonList(addressOf(replica)), hops[0] + 1, deadline)
+                    .whenComplete(new Promise.Callback<Message>() {
+                @Override
+                public void done(Message reply, Throwable failure) {
+                    synchronized (answers) {
+                        if(failure == null) {
+                            answers.add((reply.keyLength >= 0) ? reply.buffer() : null);
+                            hopMax[0] = Math.max(hopMax[0], reply.hops);
+                        }
+                        else {
+                            failed[0]++;
+                        }
+                        answers.notifyAll();
+                    }
+                }
+            });
+        }
+
+        synchronized (answers) {
+            try {
+                long remaining = deadline - System.currentTimeMillis();
+                while(answers.size() < needed && answers.size() + failed[0] < replicas.size() && remaining > 0) {
+                    answers.wait(remaining);
+                    remaining = deadline - System.currentTimeMillis();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if(answers.size() < needed) {
+                _log.e("Query for " + key + " got " + answers.size() + " of " + needed + " answers");
+                _metrics.count("query.failed", 1);
+                return null;
+            }
+            hops[0] = hopMax[0];
+            return majority(answers);
+        }
+    }
+
+    // Returns the answer given most often, null standing for a missing key
+    private static ByteBuffer majority(List<ByteBuffer> answers) {
+        ByteBuffer best = null;
+        int bestCount = 0;
+        for(ByteBuffer answer : answers) {
+            int count = 0;
+            for(ByteBuffer other : answers) {
+                if((answer == null) ? (other == null) : answer.equals(other)) {
+                    count++;
+                }
+            }
+            if(count > bestCount) {
+                best = answer;
+                bestCount = count;
+            }
+        }
+        return best;
+    }
+
+    /* Counts the entries of a '*' query. Every node in the view is asked for
+     * its count at once and added along with it, this node first. A node that
+     * can't be counted is left out.
+     */
+    void count(List<String> nodes, List<Integer> counts) {
+        nodes.add(_local);
+        counts.add(countOwned());
+        for(Map.Entry<String, Message> reply : fanOut(Message.COUNT, null).entrySet()) {
+            if(reply.getValue() != null) {
+                nodes.add(reply.getKey());
+                counts.add(Integer.parseInt(reply.getValue().value()));
+            }
+        }
+    }
+
+    /* Reads the page of a node's entries that follows the given token for a
+     * '*' query, fetching it with a SCAN request unless the node is this one.
+     * Returns the token of the next page. A page that can't be read is empty.
+     */
+    String page(String node, String token, List<String> keys, List<byte[]> values) {
+        if(node.equals(_local)) {
+            return scan(token, keys, values);
+        }
+        try {
+            String address = addressOf(node);
+            return call(Message.of(Message.SCAN, _local, address, null, token, 0), keys, values, CALL_TIMEOUT).value();
+        } catch (IOException e) {
+            _log.e("Can't read entries from " + node);
+            keys.clear();
+            values.clear();
+            return null;
+        }
+    }
+
+    /* Sends the same request to every other node in the view at once and waits
+     * until each has answered or failed, so the whole call takes about one
+     * round trip however many nodes there are. Returns the response of every
+     * node in view order, null for those that failed. The status of every node
+     * is logged in the order the responses arrived.
+     */
+    private Map<String, Message> fanOut(byte op, String value) {
+
+        List<String> nodes = new ArrayList<String>(_view.nodes());
+        nodes.remove(_local);
+        final Map<String, Message> replies = new LinkedHashMap<String, Message>();
+        final StringBuilder status = new StringBuilder();
+        final CountDownLatch done = new CountDownLatch(nodes.size());
+        final long start = System.nanoTime();
+        for(String node : nodes) {
+            replies.put(node, null);
+        }
+
+        for(final String node : nodes) {
+            Promise.Callback<Message> callback = new Promise.Callback<Message>() {
+                @Override
+                public void done(Message reply, Throwable failure) {
+                    synchronized (replies) {
+                        replies.put(node, reply);
+                        status.append(node).append((failure == null) ? " ok" : " failed")
+                                .append(" after ").append((System.nanoTime() - start) / 1000000).append(" ms, ");
+                    }
+                    done.countDown();
+                }
+            };
+            try {
+                callAsync(Message.of(op, _local, addressOf(node), null, value, 0), null, null, CALL_TIMEOUT)
+                        .whenComplete(callback);
+            } catch (IOException e) {
+                callback.done(null, e);
+            }
+        }
+
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (replies) {
+            _log.v("fan-out of op " + op + " to " + nodes.size() + " nodes: " + status);
+            return new LinkedHashMap<String, Message>(replies);
+        }
+    }
+
+    /* Forwards a single key query and waits for its answer until the deadline.
+     * A lookup that fails or runs out of time is logged and answered with
+     * null, so a dead or slow node on the path can't hold up the caller for
+     * longer than the deadline.
+     */
+    private ByteBuffer forward(String key, List<String> addresses, int[] hops, long deadline) {
+
+        try {
+            Message reply = forwardAsync(key, addresses, hops[0] + 1, deadline)
+                    .get(Math.max(deadline - System.currentTimeMillis(), 0), TimeUnit.MILLISECONDS);
+            hops[0] = reply.hops;
+            return reply.buffer();
+        } catch (TimeoutException e) {
+            _log.e("Query for " + key + " timed out");
+            _metrics.count("query.failed", 1);
+        } catch (ExecutionException e) {
+            _log.e("Query for " + key + " failed: " + e.getCause());
+            _metrics.count("query.failed", 1);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return null;
+    }
+
+    /* Issues a single key query to a replica of the key and returns a promise
+     * of the response, which carries the value and the total hop count. Each
+     * attempt passes the time left before the deadline on in the request, so
+     * every hop works to the same deadline. No thread waits for the response,
+     * so many lookups can be in flight over the same connection. A failed
+     * attempt is retried on the next of the given addresses after a backoff, up to
+     * LOOKUP_ATTEMPTS times.
+     */
+    private Promise<Message> forwardAsync(final String key, final List<String> addresses, final int hops, final long deadline) {
+
+        final Promise<Message> promise = new Promise<Message>();
+        _lookups.execute(new Runnable() {
+
+            private int _attempt = 0;
+
+            @Override
+            public void run() {
+                if(promise.isDone()) {
+                    return;
+                }
+                long remaining = deadline - System.currentTimeMillis();
+                if(remaining <= 0) {
+                    promise.completeExceptionally(new TimeoutException("Deadline passed after " + _attempt + " attempts"));
+                    return;
+                }
+                final String address = addresses.get(_attempt % addresses.size());
+                _attempt++;
+                Message request = Message.of(Message.QUERY, _local, address, key, String.valueOf(remaining), hops);
+                try {
+                    callAsync(request, null, null, (int) remaining).whenComplete(new Promise.Callback<Message>() {
+                        @Override
+                        public void done(Message reply, Throwable failure) {
+                            if(failure == null) {
+                                promise.complete(reply);
+                            }
+                            else {
+                                retry(address, failure);
+                            }
+                        }
+                    });
+                } catch (IOException e) {
+                    retry(address, e);
+                }
+            }
+
+            private void retry(String address, Throwable failure) {
+                if(_attempt >= LOOKUP_ATTEMPTS) {
+                    promise.completeExceptionally(failure);
+                }
+                else {
+                    _log.e("Query for " + key + " to " + address + " failed, retrying");
+                    _metrics.count("query.retries", 1);
+                    _lookups.schedule(this, LOOKUP_BACKOFF << (_attempt - 1), TimeUnit.MILLISECONDS);
+                }
+            }
+        });
+        return promise;
+    }
+
+    /* Checks whether this node owns the given hash, that is whether the first
+     * virtual position at or after it belongs to this node.
+     */
+    private boolean owns(RingId hash) {
+        return _local.equals(_view.owner(hash));
+    }
+
+    // Returns the ring position of a node id, hashing each node only once
+    private RingId nodeId(String node) {
+        RingId id = _nodeIds.get(node);
+        if(id == null) {
+            id = RingId.of(node);
+            _nodeIds.put(node, id);
+        }
+        return id;
+    }
+
+    /* Every node learns every other one as it joins, so requests go straight
+     * to the owner of their key. A node that gets a request it doesn't own
+     * forwards it to the owner and tells the node that routed it here about
+     * the owner, which must be missing from the sender's view of the ring or
+     * it would have sent the request there. The sender learns it like any
+     * member and sends the next requests for its ranges straight to it.
+     * Requests from clients outside the ring aren't routed and never
+     * redirected. A sender is redirected to the same owner at most once every
+     * REDIRECT_INTERVAL milliseconds, however many requests are on their way.
+     */
+    private void redirect(String from, String owner) {
+        if(from == null || from.equals(owner)) {
+            return;
+        }
+        String pair = from + " " + owner;
+        long now = System.currentTimeMillis();
+        Long last = _redirects.get(pair);
+        if(last != null && now - last < REDIRECT_INTERVAL) {
+            return;
+        }
+        _redirects.put(pair, now);
+        _metrics.count("route.redirects.sent", 1);
+        sendLater(Message.of(Message.REDIRECT, _local, addressOf(from), owner, null, 0));
+    }
+
+    /* Returns the address a node is reached at. An id that is a host:port
+     * address is its own address, an emulator id is reached at twice the id
+     * as a port on the peer host.
+     */
+    static String addressOf(String node) {
+        return (node.indexOf(':') >= 0) ? node : String.valueOf(Integer.parseInt(node) * 2);
+    }
+
+    /* Adds a node to the view of the ring. Returns true if it wasn't known, in
+     * which case it has taken over some of the local keys and a handoff is due.
+     */
+    private boolean learn(String node) {
+        if(node == null || !_view.add(node)) {
+            return false;
+        }
+        _log.v("ring view: " + _view.report());
+        return true;
+    }
+
+    // Records the number of hops a request needed to reach this node as its owner
+    private void recordHops(String op, String key, int hops) {
+        _metrics.record("hops", hops);
+        if(trace()) {
+            _log.v(op + " " + key + " resolved on " + _local + " after " + hops + " hops");
+        }
+    }
+
+    /* Asks a seed to admit this node to the ring, see JOIN. A node that knows
+     * no other member yet asks a random seed on every heartbeat, so it gets in
+     * once any of its seeds is up. A member asks a seed missing from its view
+     * at most every REJOIN_INTERVAL, so seeds started at the same time find
+     * each other and rings that formed around different seeds merge.
+     */
+    private void join() {
+
+        List<String> missing = new ArrayList<String>();
+        for(String seed : _seeds) {
+            if(!_view.nodes().contains(seed)) {
+                missing.add(seed);
+            }
+        }
+        long now = System.currentTimeMillis();
+        boolean alone = _view.nodes().size() <= 1;
+        if(missing.isEmpty() || (!alone && now - _lastJoin < REJOIN_INTERVAL)) {
+            return;
+        }
+        _lastJoin = now;
+        String seed = missing.get(_random.nextInt(missing.size()));
+        sendAside(Message.of(Message.JOIN, _local, addressOf(seed), entry(_local), null, 0));
+    }
+
+    /* Runs every HEARTBEAT_INTERVAL in the background. A node that hasn't
+     * joined yet asks a seed again, see join(). Every node then pings the
+     * MONITORS nodes that follow it on the ring, so each node is watched by as
+     * many of its predecessors and the heartbeats a node sends don't grow with
+     * the ring. A watched node that hasn't answered for FAILURE_TIMEOUT is
+     * found dead, dropped and announced dead to every member and to itself,
+     * which denies it if it was only slow, see dead(). A dead node is out of
+     * the routing within FAILURE_TIMEOUT and one heartbeat of its last
+     * answer. A heartbeat that ran more than half of FAILURE_TIMEOUT late
+     * means this node was paused itself, so it suspects nobody that round.
+     * Last the view is gossiped, see gossip().
+     */
+    private void stabilize() {
+        long now = System.nanoTime();
+        boolean paused = _lastBeat != 0
+                && now - _lastBeat > TimeUnit.MILLISECONDS.toNanos(HEARTBEAT_INTERVAL + FAILURE_TIMEOUT / 2);
+        _lastBeat = now;
+        if(paused) {
+            _detector.reset();
+        }
+        join();
+        List<String> following = following();
+        List<String> watched = following.subList(0, Math.min(MONITORS, following.size()));
+        _detector.retain(watched);
+        for(String node : watched) {
+            _detector.watch(node);
+            ping(node);
+        }
+        for(String node : _detector.suspects()) {
+            if(fail(node)) {
+                broadcast(Message.DEAD, node);
+                sendAside(Message.of(Message.DEAD, _local, addressOf(node), entry(node), null, 0));
+            }
+        }
+        gossip(following);
+    }
+
+    // Returns every other node in the order they follow this one on the ring
+    private List<String> following() {
+        List<String> nodes = new ArrayList<String>(_view.nodes());
+        nodes.remove(_local);
+        Collections.sort(nodes, new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                if(a.equals(b)) {
+                    return 0;
+                }
+                return RingId.inOpen(nodeId(a), _hashL, nodeId(b)) ? -1 : 1;
+            }
+        });
+        return nodes;
+    }
+
+    /* Sends the view to one of the nodes 1, 2, 4, 8 and so on places after
+     * this one on the ring, picked at random, which merges it with its own.
+     * Knowledge doubles its reach around the ring with every round, so a
+     * change gets to every node within a number of rounds that grows with
+     * the log of the ring size, while each node keeps connections to only as
+     * many others instead of to every member over time.
+     */
+    private void gossip(List<String> following) {
+        if(following.isEmpty()) {
+            return;
+        }
+        int fingers = 32 - Integer.numberOfLeadingZeros(following.size());
+        String node = following.get((1 << _random.nextInt(fingers)) - 1);
+        _metrics.count("membership.gossip", 1);
+        sendLater(Message.of(Message.MEMBER, _local, addressOf(node), null, members(), 0));
+    }
+
+    /* Returns the view as a MEMBER message carries it, the entry of every
+     * node separated by a space and the nodes found dead within DEAD_TTL
+     * marked with a leading '-'. Older marks are forgotten here.
+     */
+    private String members() {
+        StringBuilder builder = new StringBuilder();
+        for(String node : _view.nodes()) {
+            builder.append(entry(node)).append(' ');
+        }
+        long now = System.currentTimeMillis();
+        for(Iterator<Map.Entry<String, Long>> i = _dead.entrySet().iterator(); i.hasNext(); ) {
+            Map.Entry<String, Long> dead = i.next();
+            if(now - dead.getValue() > DEAD_TTL) {
+                i.remove();
+            }
+            else {
+                builder.append('-').append(entry(dead.getKey())).append(' ');
+            }
+        }
+        return builder.toString().trim();
+    }
+
+    /* Returns how membership messages name a node: its id and the latest
+     * incarnation known of it, separated by '@'. A node found dead that is
+     * still alive raises its incarnation and says so, see dead(), which
+     * tells its denial apart from word of its death that went around before
+     * it and is still going around after it.
+     */
+    private String entry(String node) {
+        if(node.equals(_local)) {
+            return node + "@" + _incarnation;
+        }
+        Long incarnation = _incarnations.get(node);
+        return node + "@" + ((incarnation == null) ? 0 : incarnation);
+    }
+
+    // Returns the id of the node an entry names
+    private static String nodeOf(String entry) {
+        int at = entry.lastIndexOf('@');
+        return (at < 0) ? entry : entry.substring(0, at);
+    }
+
+    // Returns the incarnation an entry names, 0 for an entry without one
+    private static long incarnationOf(String entry) {
+        int at = entry.lastIndexOf('@');
+        return (at < 0) ? 0 : Long.parseLong(entry.substring(at + 1));
+    }
+
+    /* Takes word that a node is alive at the given incarnation, and returns
+     * whether it may be learned. A node found dead is only learned this way
+     * at a later incarnation than the one it was found dead at.
+     */
+    private boolean alive(String node, long incarnation) {
+        Long known = _incarnations.get(node);
+        if(known != null && incarnation <= known) {
+            return !_dead.containsKey(node);
+        }
+        _incarnations.put(node, incarnation);
+        _dead.remove(node);
+        return true;
+    }
+
+    /* Takes word from another node that a node is dead at the given
+     * incarnation. Word about this node is denied by raising its incarnation
+     * past it and telling every member. Word about another node drops it,
+     * unless it names an older incarnation than the latest one heard of or
+     * this node is still hearing from the node itself.
+     */
+    private void dead(String node, long incarnation) {
+        if(node.equals(_local)) {
+            if(incarnation >= _incarnation) {
+                _incarnation = incarnation + 1;
+                broadcast(Message.MEMBER, _local);
+            }
+            return;
+        }
+        Long known = _incarnations.get(node);
+        if((known != null && incarnation < known) || _detector.alive(node)) {
+            return;
+        }
+        _incarnations.put(node, incarnation);
+        fail(node);
+    }
+
+    /* Merges a view sent in a MEMBER message into this one. Nodes it lists
+     * are learned, see alive(), and added to joined if they are new. Nodes it
+     * marks dead are dropped, see dead(). Returns true if the view misses
+     * some node this one knows, so the sender should be sent this view in
+     * turn.
+     */
+    private boolean merge(String view, List<String> joined) {
+
+        // The view is logged once for all the nodes learned, not for each of them as learn() would
+        Set<String> listed = new HashSet<String>();
+        int learned = 0;
+        for(String entry : view.split(" ")) {
+            if(!entry.startsWith("-")) {
+                String node = nodeOf(entry);
+                listed.add(node);
+                if(alive(node, incarnationOf(entry)) && _view.add(node)) {
+                    joined.add(node);
+                    learned++;
+                }
+            }
+            else {
+                dead(nodeOf(entry.substring(1)), incarnationOf(entry));
+            }
+        }
+        if(learned > 0) {
+            _log.v("ring view: " + _view.report());
+        }
+        for(String node : _view.nodes()) {
+            if(!listed.contains(node)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Sends a message naming the entry of the given node to every other member
+    private void broadcast(byte op, String node) {
+        String entry = entry(node);
+        for(String member : _view.nodes()) {
+            if(!member.equals(_local) && !member.equals(node)) {
+                sendLater(Message.of(op, _local, addressOf(member), entry, null, 0));
+            }
+        }
+    }
+
+    // Sends a heartbeat to a node on a lookup thread, recording it as alive once it answers
+    private void ping(final String node) {
+        _lookups.execute(new Runnable() {
+            @Override
+            public void run() {
+                Message request = Message.of(Message.PING, _local, addressOf(node), _local, null, 0);
+                try {
+                    _pool.channel(request.to).call(request, null, null, HEARTBEAT_INTERVAL)
+                            .whenComplete(new Promise.Callback<Message>() {
+                        @Override
+                        public void done(Message reply, Throwable failure) {
+                            if(failure == null) {
+                                _detector.heard(node);
+                            }
+                        }
+                    });
+                } catch (IOException e) {
+                    // Unreachable, found dead once it has been silent for long enough
+                }
+            }
+        });
+    }
+
+    /* Drops a dead node from the view, so requests for its ranges go to the
+     * next replica, which holds a copy of them, and restores the replication
+     * of the arcs it held a replica of in the background, see rebalance().
+     * Returns false if the node wasn't in the view. A node wrongly found dead
+     * is learned again once it is heard from directly or at a later
+     * incarnation, see entry().
+     */
+    private boolean fail(String node) {
+
+        _dead.put(node, System.currentTimeMillis());
+        long silent = _detector.forget(node);
+        if(!_view.nodes().contains(node)) {
+            return false;
+        }
+        final List<RingId> positions = _view.positions();
+        final List<Integer> arcs = new ArrayList<Integer>();
+        final List<List<String>> held = new ArrayList<List<String>>();
+        for(int i = 0; i < positions.size(); i++) {
+            List<String> replicas = _view.replicas(positions.get(i), REPLICATION);
+            if(replicas.contains(node)) {
+                arcs.add(i);
+                held.add(replicas);
+            }
+        }
+        if(!_view.remove(node)) {
+            return false;
+        }
+        _metrics.count("failure.detected", 1);
+        if(silent >= 0) {
+            _metrics.record("failure.detect.time", silent);
+            _log.e("node " + node + " is dead after " + (silent / 1000000) + " ms of silence, ring view: "
+                    + _view.report());
+        }
+        else {
+            _log.e("node " + node + " was found dead by another node, ring view: " + _view.report());
+        }
+        rebalance(new Runnable() {
+            @Override
+            public void run() {
+                rereplicate(positions, arcs, held);
+            }
+        });
+        return true;
+    }
+
+    /* Copies the keys of the arcs a dead node held a replica of to the nodes
+     * that took its place as a replica. The given positions and replicas are
+     * those from before the node was dropped. The first replica left of each
+     * arc sends the copies, read from the ring-order index, in batches of
+     * PAGE_SIZE keys or MessageCodec.MAX_BATCH bytes.
+     */
+    private void rereplicate(List<RingId> positions, List<Integer> arcs, List<List<String>> held) {
+
+        long start = System.nanoTime();
+        Map<String, List<String>> keys = new LinkedHashMap<String, List<String>>();
+        Map<String, List<byte[]>> values = new LinkedHashMap<String, List<byte[]>>();
+        int copied = 0, page = 0;
+        long pageBytes = 0;
+        for(int a = 0; a < arcs.size(); a++) {
+            int i = arcs.get(a);
+            List<String> before = held.get(a);
+            List<String> now = _view.replicas(positions.get(i), REPLICATION);
+            String holder = null;
+            for(String replica : before) {
+                if(now.contains(replica)) {
+                    holder = replica;
+                    break;
+                }
+            }
+            List<String> fresh = new ArrayList<String>();
+            for(String replica : now) {
+                if(!before.contains(replica)) {
+                    fresh.add(replica);
+                }
+            }
+            if(!_local.equals(holder) || fresh.isEmpty()) {
+                continue;
+            }
+
+            List<String> arc = new ArrayList<String>();
+            _index.range(positions.get((i == 0) ? positions.size() - 1 : i - 1), positions.get(i), arc, null);
+            for(String kee : arc) {
+                byte[] value;
+                try {
+                    value = Message.toArray(_storage.get(kee));
+                } catch (IOException e) {
+                    _log.e("File read failed");
+                    continue;
+                }
+                if(value == null) {
+                    continue;
+                }
+                for(String replica : fresh) {
+                    group(keys, values, addressOf(replica), kee, value);
+                    copied++;
+                }
+                page++;
+                pageBytes += value.length;
+                if(page >= PAGE_SIZE || pageBytes >= MessageCodec.MAX_BATCH) {
+                    sendCopies(keys, values);
+                    page = 0;
+                    pageBytes = 0;
+                }
+            }
+        }
+        sendCopies(keys, values);
+
+        _metrics.time("rereplicate.time", start);
+        _metrics.count("rereplicate.copied", copied);
+        if(copied > 0) {
+            _log.v("rereplicate: " + copied + " copies sent in " + ((System.nanoTime() - start) / 1000000) + " ms");
+        }
+    }
+
+    // Sends every batch of copies as a REPLICATE_BATCH and empties them
+    private void sendCopies(Map<String, List<String>> keys, Map<String, List<byte[]>> values) {
+        for(String address : keys.keySet()) {
+            Message copy = Message.of(Message.REPLICATE_BATCH, _local, address, null, null, 0);
+            MessageCodec.writeBatch(copy, keys.get(address), values.get(address));
+            send(copy);
+        }
+        keys.clear();
+        values.clear();
+    }
+
+    // Hands keys off to joined nodes in the background, see handoff() and rebalance()
+    private void handoffLater(final List<String> joined) {
+        rebalance(new Runnable() {
+            @Override
+            public void run() {
+                handoff(joined);
+            }
+        });
+    }
+
+    /* Runs a handoff or a rereplication in the background, one at a time in
+     * the order the ring changed. Both make blocking calls to other nodes, so
+     * they don't run on the reader of the connection that brought the news,
+     * where every frame behind them would wait, heartbeats included.
+     */
+    private void rebalance(Runnable move) {
+        try {
+            _moves.execute(move);
+        } catch (RejectedExecutionException e) {
+            // The node has been closed
+        }
+    }
+
+    /* Once nodes join, the keys of the virtual ranges they took over are handed
+     * to them. Only the arcs whose replicas now include a joined node are
+     * looked at, their keys read from the ring-order index, and those are
+     * processed in pages of PAGE_SIZE keys or MessageCodec.MAX_BATCH bytes,
+     * whichever comes first. Keys this node no longer holds a
+     * replica of are grouped by their owner and sent straight to it, one batch
+     * per owner and page over the shared connection, and removed here once the
+     * owner has stored them. The owner passes them on to its replicas. Joined
+     * nodes that became a replica of a key this node keeps are sent a copy by
+     * the first replica that was already holding it. Keys that stay are only
+     * read. Progress and the bytes moved are logged after every page.
+     */
+    private void handoff(List<String> joined) {
+
+        // A node without keys has none to hand off, as is the case for every node while it joins
+        if(_index.isEmpty()) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        List<String> affected = new ArrayList<String>();
+        List<RingId> hashes = new ArrayList<RingId>();
+        List<RingId> positions = _view.positions();
+        for(int i = 0; i < positions.size(); i++) {
+            RingId to = positions.get(i);
+            for(String replica : _view.replicas(to, REPLICATION)) {
+                if(joined.contains(replica)) {
+                    RingId from = positions.get((i == 0) ? positions.size() - 1 : i - 1);
+                    _index.range(from, to, affected, hashes);
+                    break;
+                }
+            }
+        }
+
+        int scanned = 0, moved = 0, copied = 0;
+        long bytes = 0;
+        for(int at = 0; at < affected.size(); ) {
+            Map<String, List<String>> keys = new LinkedHashMap<String, List<String>>();
+            Map<String, List<byte[]>> values = new LinkedHashMap<String, List<byte[]>>();
+            Map<String, List<String>> copyKeys = new LinkedHashMap<String, List<String>>();
+            Map<String, List<byte[]>> copyValues = new LinkedHashMap<String, List<byte[]>>();
+            int end = at;
+            long pageBytes = 0;
+            try {
+                while(end < affected.size() && end - at < PAGE_SIZE && pageBytes < MessageCodec.MAX_BATCH) {
+                    String kee = affected.get(end);
+                    List<String> replicas = _view.replicas(hashes.get(end), REPLICATION);
+                    end++;
+                    if(!replicas.contains(_local)) {
+                        byte[] value = Message.toArray(_storage.get(kee));
+                        if(value != null) {
+                            group(keys, values, addressOf(replicas.get(0)), kee, value);
+                            pageBytes += value.length;
+                        }
+                        continue;
+                    }
+                    String holder = null;
+                    for(String replica : replicas) {
+                        if(!joined.contains(replica)) {
+                            holder = replica;
+                            break;
+                        }
+                    }
+                    if(_local.equals(holder)) {
+                        byte[] value = null;
+                        for(String replica : replicas) {
+                            if(joined.contains(replica)) {
+                                value = (value == null) ? Message.toArray(_storage.get(kee)) : value;
+                                if(value != null) {
+                                    group(copyKeys, copyValues, addressOf(replica), kee, value);
+                                    pageBytes += value.length;
+                                }
+                            }
+                        }
+                    }
+                }
+                scanned += end - at;
+                at = end;
+            } catch (IOException e) {
+                _log.e("File read failed");
+                return;
+            }
+
+            for(String address : keys.keySet()) {
+                List<String> batch = keys.get(address);
+                Message request = Message.of(Message.INSERT_BATCH, _local, address, null, null, 0);
+                MessageCodec.writeBatch(request, batch, values.get(address));
+                try {
+                    Message reply = call(request, null, null, CALL_TIMEOUT);
+                    for(int i = 0; i < batch.size(); i++) {
+                        // The view may have changed again while the batch was out
+                        if(i < reply.valueLength && reply.value[i] == Message.STORED
+                                && !_view.replicas(RingId.of(batch.get(i)), REPLICATION).contains(_local)) {
+                            _storage.remove(batch.get(i));
+                            _index.remove(batch.get(i));
+                            _cache.invalidate(batch.get(i));
+                            moved++;
+                        }
+                    }
+                    bytes += request.valueLength;
+                } catch (IOException e) {
+                    _log.e("Handoff of " + batch.size() + " keys to " + address + " failed");
+                }
+            }
+            for(String address : copyKeys.keySet()) {
+                Message copy = Message.of(Message.REPLICATE_BATCH, _local, address, null, null, 0);
+                MessageCodec.writeBatch(copy, copyKeys.get(address), copyValues.get(address));
+                send(copy);
+                copied += copyKeys.get(address).size();
+                bytes += copy.valueLength;
+            }
+            if(!keys.isEmpty() || !copyKeys.isEmpty()) {
+                _log.v("handoff: " + moved + " keys moved, " + copied + " copied, " + bytes + " bytes, "
+                        + scanned + " keys scanned");
+            }
+        }
+
+        _metrics.time("handoff.time", start);
+        _metrics.count("handoff.moved", moved);
+        _metrics.count("handoff.copied", copied);
+        _log.v("handoff done: " + moved + " moved and " + copied + " copied of " + scanned + " keys, "
+                + bytes + " bytes in " + ((System.nanoTime() - start) / 1000000) + " ms");
+    }
+
+    // Adds an entry to the batch going to the given address
+    private static void group(Map<String, List<String>> keys, Map<String, List<byte[]>> values,
+                              String address, String key, byte[] value) {
+        if(!keys.containsKey(address)) {
+            keys.put(address, new ArrayList<String>());
+            values.put(address, new ArrayList<byte[]>());
+        }
+        keys.get(address).add(key);
+        values.get(address).add(value);
+    }
+
+    /* Sends a message in the background without waiting for it. Messages go
+     * out one at a time in the order they were handed in, so writes to the
+     * same key reach the other node in order.
+     */
+    private void sendLater(final Message msg) {
+        try {
+            _sends.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if(trace()) {
+                        _log.v("sending " + msg.key() + " from " + _local + " to " + msg.to);
+                    }
+                    send(msg);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // The node has been closed
+        }
+    }
+
+    /* Sends a message on a lookup thread instead of queueing it behind the
+     * others, for nodes that may well be down, such as a seed or a node just
+     * found dead. Connecting to a host that is gone can take the connect
+     * timeout on every attempt, which would hold up everything sendLater()
+     * has queued for live nodes.
+     */
+    private void sendAside(final Message msg) {
+        try {
+            _lookups.execute(new Runnable() {
+                @Override
+                public void run() {
+                    send(msg);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // The node has been closed
+        }
+    }
+
+    /* Method to send a message from one node to another over the shared
+     * connection to its address. The message is written as a single binary
+     * frame. A connection the peer has since dropped is replaced by a fresh
+     * one and the message is sent again once.
+     */
+    private void send(Message msg) {
+
+        for(int attempt = 0; attempt < 2; attempt++) {
+            try {
+                _pool.channel(msg.to).send(msg);
+                return;
+            } catch (UnknownHostException e) {
+                _log.e("ClientTask UnknownHostException");
+                return;
+            } catch (IOException e) {
+                // The channel has closed itself, the next attempt connects again
+            }
+        }
+        _metrics.count("route.dead", 1);
+        _log.e("ClientTask socket IOException");
+    }
+
+    /* Sends a request and waits for its response, see callAsync(). The last
+     * frame is returned so the caller can read its hop count, outcomes or
+     * continuation token.
+     */
+    private Message call(Message request, List<String> keys, List<byte[]> values, int timeout) throws IOException {
+
+        try {
+            return callAsync(request, keys, values, timeout).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            if(e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /* Sends a request over the shared connection to its address and returns a
+     * promise of the response frames, which are read off the connection
+     * together with those of any other requests in flight to the same node.
+     * The key and value of every frame carrying a key are added to the given
+     * lists, if any. A response that hasn't arrived within the timeout fails
+     * the promise with a SocketTimeoutException.
+     */
+    private Promise<Message> callAsync(Message request, List<String> keys, List<byte[]> values, int timeout) throws IOException {
+        try {
+            return _pool.channel(request.to).call(request, keys, values, Math.max(timeout, 1));
+        } catch (IOException e) {
+            _metrics.count("route.dead", 1);
+            throw e;
+        }
+    }
+
+    /* The store method is a helper function for insert(). Given a key and
+     * value, an entry is made and stored on the node.
+     */
+    private void store(String key, byte[] value) {
+
+        try {
+            long start = System.nanoTime();
+            _storage.put(key, value);
+            _metrics.time("storage.write.time", start);
+            _index.add(key);
+            _cache.invalidate(key);
+            if(trace()) {
+                _log.v("storing " + key + " - " + value.length + " bytes on " + _local);
+            }
+        } catch (IOException e) {
+            _log.e("File write failed");
+        }
+
+    }
+
+    // Stores a routed insert, reports the hops it took to get here and passes it on to the replicas
+    private void store(String key, byte[] value, int hops) {
+        recordHops("insert", key, hops);
+        store(key, value);
+        replicate(key, value);
+    }
+
+    // Stores a batch of keys with a single storage write
+    private boolean storeAll(List<String> keys, List<byte[]> values) {
+
+        try {
+            long start = System.nanoTime();
+            _storage.putAll(keys, values);
+            _metrics.time("storage.write_batch.time", start);
+            _index.addAll(keys);
+        } catch (IOException e) {
+            _log.e("Batch write failed");
+            return false;
+        } finally {
+            for(String key : keys) {
+                _cache.invalidate(key);
+            }
+        }
+        if(trace()) {
+            _log.v("storing " + keys.size() + " keys on " + _local);
+        }
+        return true;
+    }
+
+    /* A helper function for delete(). For a given key, a storage entry is
+     * deleted. If the key is either '@' or '*', all local entries are erased.
+     */
+    private int remove(String key) {
+
+        try {
+            if(key.equals("@") || key.equals("*")) {
+                _storage.clear();
+                _index.clear();
+                _cache.clear();
+            }
+            else {
+                long start = System.nanoTime();
+                boolean removed = _storage.remove(key);
+                _metrics.time("storage.remove.time", start);
+                _index.remove(key);
+                _cache.invalidate(key);
+                if(!removed) {
+                    _log.e("No file to delete");
+                    return 0;
+                }
+            }
+        } catch (IOException e) {
+            _log.e("File delete failed");
+            return 0;
+        }
+
+        return 1;
+    }
+
+    // Removes a routed delete, reports the hops it took to get here and passes it on to the replicas
+    private int remove(String key, int hops) {
+        recordHops("delete", key, hops);
+        replicate(key, null);
+        return remove(key);
+    }
+
+    /* Sends a write this node owns to the other replicas of its key, a null
+     * value removing the key. Replica writes go out in order through
+     * sendLater() without waiting for an answer.
+     */
+    private void replicate(String key, byte[] value) {
+        for(String replica : _view.replicas(RingId.of(key), REPLICATION)) {
+            if(!replica.equals(_local)) {
+                Message msg = Message.of(Message.REPLICATE, _local, addressOf(replica), key, null, 0);
+                msg.setBytes(value);
+                sendLater(msg);
+            }
+        }
+    }
+
+    // Sends a stored batch to the other replicas of its keys, one REPLICATE_BATCH per node and MessageCodec.MAX_BATCH bytes
+    private void replicateAll(List<String> keys, List<byte[]> values) {
+
+        Map<String, List<Integer>> groups = new LinkedHashMap<String, List<Integer>>();
+        for(int i = 0; i < keys.size(); i++) {
+            for(String replica : _view.replicas(RingId.of(keys.get(i)), REPLICATION)) {
+                if(!replica.equals(_local)) {
+                    List<Integer> group = groups.get(replica);
+                    if(group == null) {
+                        group = new ArrayList<Integer>();
+                        groups.put(replica, group);
+                    }
+                    group.add(i);
+                }
+            }
+        }
+        for(Map.Entry<String, List<Integer>> group : groups.entrySet()) {
+            for(List<Integer> indices : split(keys, values, group.getValue())) {
+                Message msg = Message.of(Message.REPLICATE_BATCH, _local, addressOf(group.getKey()), null, null, 0);
+                MessageCodec.writeBatch(msg, select(keys, indices), select(values, indices));
+                sendLater(msg);
+            }
+        }
+    }
+
+    /* Adds every entry stored on this node to the given lists, replicas of
+     * keys owned by other nodes included, for an '@' query.
+     */
+    void local(List<String> keys, List<byte[]> values) {
+
+        try {
+            _log.v("STARTING FULL QUERY ON NODE " + _local + ", read cache " + _cache);
+            for(String kee : _storage.keys()) {
+                byte[] value = Message.toArray(_storage.get(kee));
+                if(value != null) {
+                    keys.add(kee);
+                    values.add(value);
+                    if(trace()) {
+                        _log.v("querying " + kee + " --- " + value.length + " bytes");
+                    }
+                }
+            }
+        } catch (IOException e) {
+            _log.e("File read failed");
+        }
+    }
+
+    /* The local query helper function to return the stored value of a key on
+     * the node, or null if there is none. Values are served from the read
+     * cache when possible, store() and remove() invalidate it. The buffer may
+     * be shared with the cache and the store, so it is only read through
+     * duplicates.
+     */
+    private ByteBuffer get(String key) {
+
+        try {
+            ByteBuffer value = _cache.get(key);
+            if(value == null) {
+                long stamp = _cache.stamp();
+                long start = System.nanoTime();
+                value = _storage.get(key);
+                _metrics.time("storage.read.time", start);
+                _metrics.count("cache.misses", 1);
+                if(value != null) {
+                    _cache.fill(key, value, stamp);
+                }
+            }
+            else {
+                _metrics.count("cache.hits", 1);
+            }
+            if(trace()) {
+                _log.v("querying " + key + " --- " + ((value == null) ? "none" : value.remaining() + " bytes"));
+            }
+            return value;
+        } catch (IOException e) {
+            _log.e("File read failed");
+            return null;
+        }
+    }
+
+    /* Reads the page of entries this node owns that follows the given token
+     * in ring order, or the first page if it is null. The token is the ring
+     * position of the last key looked at. Replicas of keys owned by other
+     * nodes are skipped so a '*' query sees every key once. Returns the token
+     * of the next page, or null at the end.
+     */
+    private String scan(String token, List<String> keys, List<byte[]> values) {
+
+        try {
+            RingId after = (token == null) ? null : RingId.parse(token);
+            for(Map.Entry<RingId, String> entry : _index.after(after).entrySet()) {
+                if(owns(entry.getKey())) {
+                    byte[] value = Message.toArray(_storage.get(entry.getValue()));
+                    if(value != null) {
+                        keys.add(entry.getValue());
+                        values.add(value);
+                        if(keys.size() == PAGE_SIZE) {
+                            return entry.getKey().toString();
+                        }
+                    }
+                }
+            }
+            return null;
+        } catch (IOException e) {
+            _log.e("File read failed");
+            return null;
+        }
+    }
+
+    /* Returns the number of local entries this node owns, counted from the
+     * index over the arcs this node owns.
+     */
+    private int countOwned() {
+
+        if(_view.nodes().size() <= 1) {
+            // Alone on the ring, every local key is owned
+            try {
+                return _storage.size();
+            } catch (IOException e) {
+                _log.e("File read failed");
+                return 0;
+            }
+        }
+        List<RingId> positions = _view.positions();
+        int count = 0;
+        for(int i = 0; i < positions.size(); i++) {
+            RingId to = positions.get(i);
+            if(_local.equals(_view.owner(to))) {
+                count += _index.count(positions.get((i == 0) ? positions.size() - 1 : i - 1), to);
+            }
+        }
+        return count;
+    }
+
+    // Answers a routed query and reports the hops it took to get here
+    private ByteBuffer get(String key, int hops) {
+        recordHops("query", key, hops);
+        return get(key);
+    }
+
+    /***
+     * ServerTask accepts incoming connections and watches them with a single
+     * selector. All functionality is performed on separate threads to keep
+     * the main program functioning. Peers keep their connections open across
+     * many messages, and most of them sit idle most of the time, so no thread
+     * is tied to a connection: once one has data to read it is handed to the
+     * _connections pool until it runs dry, see Connection. The selector thread
+     * also finishes writing responses the socket couldn't take at once, and
+     * closes connections left idle for twice the pool timeout.
+     */
+    private class ServerTask implements Runnable {
+
+        @Override
+        public void run() {
+
+            Selector selector = _selector;
+            long swept = System.currentTimeMillis();
+
+            try {
+                while(!_closing) {
+                    try {
+                        selector.select(PeerPool.IDLE_TIMEOUT);
+                        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                        while(keys.hasNext()) {
+                            SelectionKey key = keys.next();
+                            keys.remove();
+                            ready(selector, key);
+                        }
+                        Connection changed;
+                        while((changed = _changed.poll()) != null) {
+                            changed.interest();
+                        }
+                        long now = System.currentTimeMillis();
+                        if(now - swept >= PeerPool.IDLE_TIMEOUT) {
+                            swept = now;
+                            for(Connection connection : _accepted) {
+                                connection.closeIfIdle(now);
+                            }
+                        }
+                    } catch (IOException e) {
+                        _log.e("ServerSocket IOException");
+                    }
+                }
+            } finally {
+                shutdown();
+            }
+
+        }
+
+        // Acts on a key the selector found ready
+        private void ready(Selector selector, SelectionKey key) throws IOException {
+            try {
+                if(key.isAcceptable()) {
+                    accept(selector);
+                    return;
+                }
+                Connection connection = (Connection) key.attachment();
+                if(key.isWritable()) {
+                    connection.writable();
+                }
+                if(key.isReadable()) {
+                    connection.readable();
+                }
+            } catch (CancelledKeyException e) {
+                // The connection was closed by another thread in the meantime
+            }
+        }
+
+        // Stops listening and closes every connection, once the node is closed
+        private void shutdown() {
+            try {
+                _selector.close();
+                _server.close();
+            } catch (IOException e) {
+                _log.e("Can't close server");
+            }
+            for(Connection connection : _accepted) {
+                connection.close();
+            }
+        }
+
+        private void accept(Selector selector) throws IOException {
+            SocketChannel channel;
+            while((channel = _server.accept()) != null) {
+                try {
+                    channel.configureBlocking(false);
+                    channel.socket().setTcpNoDelay(true);
+                    Connection connection = new Connection(channel);
+                    _accepted.add(connection);
+                    connection._key = channel.register(selector, SelectionKey.OP_READ, connection);
+                } catch (IOException e) {
+                    _log.e("Can't accept connection");
+                    channel.close();
+                }
+            }
+        }
+
+    }
+
+    /***
+     * Connection reads messages from a single accepted
+     * connection until the peer closes it or leaves it idle for too long. Once a
+     * message is found, it is broken apart and the sent operation is performed
+     * (between insert, insert_batch, delete, replicate, replicate_batch, query,
+     * scan, count, clear, metrics, join, member, redirect, ping and dead).
+     * Messages that expect no response are handled in order as they are read,
+     * which keeps the writes of a node in the order it sent them. Requests are
+     * handed to the _requests pool and answered whenever they finish, tagged
+     * with their request id, so a slow query doesn't hold up the ones behind
+     * it. Once PeerPool.MAX_IN_FLIGHT requests of a connection are being
+     * handled, no more are read from it until one of them is answered.
+     *
+     * The selector stops watching a connection for reads while a pool thread
+     * is serving it, so only one thread at a time reads it and its frames are
+     * handled in order. Frames are decoded into one message per connection,
+     * which the inline handlers copy what they keep out of. A request takes
+     * the message it was decoded into along to the pool, and the next frame
+     * goes into a new one. Responses are written as far as the socket takes
+     * them, and the selector writes the rest once it has room.
+     */
+    private class Connection implements Runnable {
+
+        private final SocketChannel _channel;
+        private final Semaphore _permits = new Semaphore(PeerPool.MAX_IN_FLIGHT);
+        // Read bytes not yet decoded, in write mode between reads, and a stream that decodes from them
+        private ByteBuffer _in = ByteBuffer.allocate(BUFFER_SIZE);
+        private final DataInputStream _input = new DataInputStream(new InputStream() {
+            @Override
+            public int read() {
+                return _in.hasRemaining() ? (_in.get() & 0xff) : -1;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                if(len == 0) {
+                    return 0;
+                }
+                if(!_in.hasRemaining()) {
+                    return -1;
+                }
+                int n = Math.min(len, _in.remaining());
+                _in.get(b, off, n);
+                return n;
+            }
+        });
+        private Message _frame = new Message();
+        private volatile long _lastRead = System.currentTimeMillis();
+        private volatile SelectionKey _key;
+
+        // Encoded responses, of which the first _written bytes are on the socket, see respond()
+        private OutputBuffer _out = new OutputBuffer();
+        private DataOutputStream _output = new DataOutputStream(_out);
+        private int _written;
+        private boolean _serving, _writing, _closed;
+
+        Connection(SocketChannel channel) {
+            _channel = channel;
+        }
+
+        // Called by the selector once there is data, hands the connection to a pool thread
+        void readable() {
+            synchronized (this) {
+                _serving = true;
+            }
+            interest();
+            try {
+                _connections.execute(this);
+            } catch (RejectedExecutionException e) {
+                // The node has been closed
+                close();
+            }
+        }
+
+        // Called by the selector once the socket takes more of the pending responses
+        void writable() {
+            try {
+                synchronized (this) {
+                    flush();
+                }
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        // Sets what the selector watches the connection for, only ever on the selector thread
+        synchronized void interest() {
+            if(_key == null || !_key.isValid()) {
+                return;
+            }
+            try {
+                _key.interestOps((_serving ? 0 : SelectionKey.OP_READ) | (_writing ? SelectionKey.OP_WRITE : 0));
+            } catch (CancelledKeyException e) {
+                // The connection was closed by another thread in the meantime
+            }
+        }
+
+        // Has the selector thread look at the connection again, see interest()
+        private void changed() {
+            _changed.add(this);
+            _selector.wakeup();
+        }
+
+        // Closes the connection if nothing has happened on it for twice the pool timeout
+        void closeIfIdle(long now) {
+            synchronized (this) {
+                if(_serving || _writing || _permits.availablePermits() < PeerPool.MAX_IN_FLIGHT
+                        || now - _lastRead < 2 * PeerPool.IDLE_TIMEOUT) {
+                    return;
+                }
+            }
+            close();
+        }
+
+        void close() {
+            synchronized (this) {
+                if(_closed) {
+                    return;
+                }
+                _closed = true;
+            }
+            _accepted.remove(this);
+            if(_key != null) {
+                _key.cancel();
+            }
+            try {
+                _channel.close();
+            } catch (IOException e) {
+                _log.e("Can't close connection");
+            }
+        }
+
+        /* Reads and handles frames until the socket has no more data for now,
+         * then hands the connection back to the selector.
+         */
+        @Override
+        public void run() {
+
+            boolean served = false;
+            try {
+                while(true) {
+                    _in.flip();
+                    while(hasFrame()) {
+                        serve();
+                    }
+                    _in.compact();
+                    reserve();
+                    int read = _channel.read(_in);
+                    if(read < 0) {
+                        // Peer closed the connection
+                        return;
+                    }
+                    if(read == 0) {
+                        break;
+                    }
+                    _lastRead = System.currentTimeMillis();
+                }
+                served = true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException e) {
+                if(!_closing) {
+                    _log.e("ServerSocket IOException");
+                }
+            } finally {
+                if(served) {
+                    synchronized (this) {
+                        _serving = false;
+                    }
+                    changed();
+                }
+                else {
+                    close();
+                }
+            }
+        }
+
+        // Checks whether a whole frame has been read, the buffer being in read mode
+        private boolean hasFrame() throws IOException {
+            if(_in.remaining() < 4) {
+                return false;
+            }
+            int length = _in.getInt(_in.position());
+            if(length < 0 || length > MessageCodec.MAX_FRAME) {
+                throw new IOException("Bad frame length " + length);
+            }
+            return _in.remaining() - 4 >= length;
+        }
+
+        /* Makes room for the rest of the frame being read, the buffer being in
+         * write mode, and gives back a buffer grown for a large frame once
+         * it is empty again.
+         */
+        private void reserve() {
+            int need = BUFFER_SIZE;
+            if(_in.position() >= 4) {
+                need = Math.max(need, 4 + _in.getInt(0));
+            }
+            if(need > _in.capacity() || (_in.position() == 0 && _in.capacity() > BUFFER_SIZE)) {
+                ByteBuffer grown = ByteBuffer.allocate(need);
+                _in.flip();
+                grown.put(_in);
+                _in = grown;
+            }
+        }
+
+        // Decodes the next frame and handles it, inline or on the _requests pool
+        private void serve() throws IOException, InterruptedException {
+            final Message msg = MessageCodec.read(_input, _frame);
+            _metrics.count("bytes.in.received", msg.wireLength);
+            if(!Message.expectsReply(msg.op)) {
+                handle(msg);
+                return;
+            }
+            _frame = new Message();
+            _permits.acquire();
+            _requests.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        handle(msg);
+                    } catch (IOException e) {
+                        _log.e("Can't answer request " + msg.id);
+                    } finally {
+                        _permits.release();
+                    }
+                }
+            });
+        }
+
+        /* Writes as much of the pending responses as the socket takes. Whatever
+         * is left is written by the selector once the socket has room again.
+         */
+        private void flush() throws IOException {
+            ByteBuffer pending = ByteBuffer.wrap(_out.array(), _written, _out.size() - _written);
+            _written += _channel.write(pending);
+            boolean done = (_written == _out.size());
+            if(done) {
+                _written = 0;
+                if(_out.array().length > BUFFER_SIZE) {
+                    _out = new OutputBuffer();
+                    _output = new DataOutputStream(_out);
+                }
+                else {
+                    _out.reset();
+                }
+            }
+            if(_writing == done) {
+                _writing = !done;
+                changed();
+            }
+        }
+
+        // Builds an empty response to the given request
+        private Message reply(Message msg, int hops) {
+            Message reply = new Message();
+            reply.op = Message.QUERY_RESP;
+            reply.setFrom(_local);
+            reply.id = msg.id;
+            reply.hops = hops;
+            reply.setKey(null);
+            reply.setValue(null);
+            return reply;
+        }
+
+        /* Returns the id of the node that routed a request here, or null if
+         * it came straight from a client. Nodes count a hop for every request
+         * they route, clients send theirs with none.
+         */
+        private String routedFrom(Message msg) {
+            return (msg.hops > 0) ? msg.from : null;
+        }
+
+        // Writes a response frame, whole, to a connection that other requests are answered on as well
+        private void respond(Message reply) throws IOException {
+            int length;
+            synchronized (this) {
+                if(_closed) {
+                    throw new IOException("Connection closed");
+                }
+                length = MessageCodec.write(_output, reply, _compressor);
+                flush();
+            }
+            _metrics.count("bytes.in.sent", length);
+        }
+
+        private void handle(Message msg) throws IOException {
+
+            // A batch carries its keys packed in the value, so it is unpacked before anything else
+            if(msg.op == Message.INSERT_BATCH) {
+                List<String> keys = new ArrayList<String>();
+                List<byte[]> values = new ArrayList<byte[]>();
+                MessageCodec.readBatch(msg, keys, values);
+                byte[] outcomes = insertAll(keys, values, msg.hops, routedFrom(msg));
+                Message reply = reply(msg, msg.hops);
+                reply.op = Message.BATCH_RESP;
+                reply.value = outcomes;
+                reply.valueLength = outcomes.length;
+                respond(reply);
+                return;
+            }
+            if(msg.op == Message.REPLICATE_BATCH) {
+                List<String> keys = new ArrayList<String>();
+                List<byte[]> values = new ArrayList<byte[]>();
+                MessageCodec.readBatch(msg, keys, values);
+                storeAll(keys, values);
+                return;
+            }
+
+            byte op = msg.op;
+            String key = msg.key();
+            int hops = msg.hops;
+
+            // Insert and delete will have a node perform a local call on either function
+            if(op == Message.INSERT) {
+                insert(key, msg.bytes(), hops, routedFrom(msg));
+            }
+            else if(op == Message.DELETE) {
+                delete(key, hops, routedFrom(msg));
+            }
+
+            // A replicated write comes from the owner of the key and is applied locally as is
+            else if(op == Message.REPLICATE) {
+                byte[] value = msg.bytes();
+                if(value != null) {
+                    store(key, value);
+                }
+                else {
+                    remove(key);
+                }
+            }
+
+            /* If a query call is received, the key is looked up and the result is
+             * sent back in a single frame that also carries the total number of
+             * hops the lookup took. The value of the request holds the time left
+             * for the lookup in milliseconds. A replica answers from its own copy.
+             */
+            else if(op == Message.QUERY) {
+                int[] total = {hops};
+                String value = msg.value();
+                long budget = (value == null) ? LOOKUP_TIMEOUT : Long.parseLong(value);
+                ByteBuffer found = lookup(key, total, System.currentTimeMillis() + budget, Consistency.ONE,
+                        routedFrom(msg));
+                Message reply = reply(msg, total[0]);
+                if(found != null) {
+                    reply.setKey(key);
+                    reply.setBytes(found);
+                }
+                respond(reply);
+            }
+
+            /* A scan returns the page of local entries that follows the token in
+             * the value, one row per frame flagged as having more to follow. The
+             * last frame carries the token of the next page, or none at the end.
+             */
+            else if(op == Message.SCAN) {
+                List<String> keys = new ArrayList<String>(PAGE_SIZE);
+                List<byte[]> values = new ArrayList<byte[]>(PAGE_SIZE);
+                String token = scan(msg.value(), keys, values);
+                Message reply = reply(msg, 0);
+                reply.flags = Message.FLAG_MORE;
+                for(int i = 0; i < keys.size(); i++) {
+                    reply.setKey(keys.get(i));
+                    reply.setBytes(values.get(i));
+                    respond(reply);
+                }
+                reply.flags = 0;
+                reply.setKey(null);
+                reply.setValue(token);
+                respond(reply);
+            }
+
+            // A clear removes every local entry and returns 1 if it succeeded, as part of a '*' delete
+            else if(op == Message.CLEAR) {
+                Message reply = reply(msg, 0);
+                reply.setValue(String.valueOf(remove("@")));
+                respond(reply);
+            }
+
+            // A metrics request returns every metric of this node, one per frame like a scan
+            else if(op == Message.METRICS) {
+                List<String> names = new ArrayList<String>();
+                List<String> values = new ArrayList<String>();
+                _metrics.snapshot(names, values);
+                Message reply = reply(msg, 0);
+                reply.flags = Message.FLAG_MORE;
+                for(int i = 0; i < names.size(); i++) {
+                    reply.setKey(names.get(i));
+                    reply.setValue(values.get(i));
+                    respond(reply);
+                }
+                reply.flags = 0;
+                reply.setKey(null);
+                reply.setValue(null);
+                respond(reply);
+            }
+
+            // A count returns the number of local entries this node owns
+            else if(op == Message.COUNT) {
+                Message reply = reply(msg, 0);
+                reply.setValue(String.valueOf(countOwned()));
+                respond(reply);
+            }
+
+            /* Any member admits a joining node. It learns the node, sends it
+             * the whole view at once as a MEMBER message and tells every other
+             * member about it, so a new node is known everywhere after one
+             * round of messages instead of a walk around the ring, and joins
+             * don't queue up behind each other on the nodes they would have
+             * passed. Joins admitted by different members at the same time
+             * reach everyone through the gossip of stabilize(). A node that
+             * rejoins after a restart is announced again in the same way.
+             */
+            else if(op == Message.JOIN) {
+                long start = System.nanoTime();
+                String node = nodeOf(key);
+                _dead.remove(node);
+                alive(node, incarnationOf(key));
+                boolean fresh = learn(node);
+                sendLater(Message.of(Message.MEMBER, _local, addressOf(node), null, members(), 0));
+                broadcast(Message.MEMBER, node);
+                if(fresh) {
+                    handoffLater(Collections.singletonList(node));
+                }
+                _metrics.time("join.time", start);
+            }
+
+            /* A member message names the entry of a node that joined or is
+             * alive in its key, see alive(), or carries the view of its sender
+             * in its value, as the answer to a join or as gossip, see merge().
+             * The sender is heard from directly and learned whatever this node
+             * thought of it. A sender whose view misses nodes this one knows is
+             * sent this view back, so both sides of a gossip round end up with
+             * the nodes either knew. Nodes learned this way are handed their
+             * keys.
+             */
+            else if(op == Message.MEMBER) {
+                List<String> joined = new ArrayList<String>();
+                _dead.remove(msg.from);
+                if(learn(msg.from)) {
+                    joined.add(msg.from);
+                }
+                if(key != null && alive(nodeOf(key), incarnationOf(key)) && learn(nodeOf(key))) {
+                    joined.add(nodeOf(key));
+                }
+                String view = msg.value();
+                if(view != null && merge(view, joined)) {
+                    sendLater(Message.of(Message.MEMBER, _local, addressOf(msg.from), null, members(), 0));
+                }
+                if(!joined.isEmpty()) {
+                    handoffLater(joined);
+                }
+            }
+
+            /* A dead notice names the entry of a node another member found
+             * dead, see dead().
+             */
+            else if(op == Message.DEAD) {
+                dead(nodeOf(key), incarnationOf(key));
+            }
+
+            /* A heartbeat is answered at once. A node that isn't in the view,
+             * such as one that was wrongly found dead, is learned again.
+             */
+            else if(op == Message.PING) {
+                _dead.remove(key);
+                _detector.heard(key);
+                respond(reply(msg, 0));
+                if(learn(key)) {
+                    handoffLater(Collections.singletonList(key));
+                }
+            }
+
+            /* A redirect names the owner of a key this node sent a request for
+             * elsewhere. The sender may not have dropped a dead owner yet, so
+             * an owner found dead lately isn't learned again this way.
+             */
+            else if(op == Message.REDIRECT) {
+                _metrics.count("route.redirects.received", 1);
+                if(!_dead.containsKey(key) && learn(key)) {
+                    handoffLater(Collections.singletonList(key));
+                }
+            }
+        }
+
+    }
+
+    /***
+     * The responses of a connection, kept so whatever the socket didn't take
+     * at once can be written from the same array later.
+     */
+    private static final class OutputBuffer extends ByteArrayOutputStream {
+
+        byte[] array() {
+            return buf;
+        }
+    }
+
+}
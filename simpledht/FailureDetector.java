@@ -0,0 +1,80 @@
+package edu.buffalo.cse.cse486586.simpledht;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/***
+ * The FailureDetector class decides which peers are dead from when each was
+ * last heard from. A peer that has been silent for longer than the timeout is
+ * suspected. The node pings every peer it watches more often than that, so a
+ * live peer is only suspected if several heartbeats in a row go unanswered,
+ * and a dead one is found within the timeout and one heartbeat. A fixed
+ * timeout is all the emulator network needs, as its round trips hardly vary,
+ * but a node that was paused itself, by a collection or a busy host, resets
+ * it rather than suspecting peers that merely went unheard meanwhile.
+ */
+class FailureDetector {
+
+    private final long _timeout;
+    private final ConcurrentHashMap<String, Long> _heard = new ConcurrentHashMap<String, Long>();
+
+    // Creates a detector that suspects peers after the given number of milliseconds of silence
+    FailureDetector(int timeout) {
+        _timeout = TimeUnit.MILLISECONDS.toNanos(timeout);
+    }
+
+    // Starts watching a peer as if it had just been heard from, unless it is watched already
+    void watch(String node) {
+        _heard.putIfAbsent(node, System.nanoTime());
+    }
+
+    // Stops watching the peers that aren't among the given ones, without suspecting them
+    void retain(Collection<String> nodes) {
+        _heard.keySet().retainAll(nodes);
+    }
+
+    // Checks whether a peer is watched and was heard from within the timeout
+    boolean alive(String node) {
+        Long heard = _heard.get(node);
+        return heard != null && System.nanoTime() - heard <= _timeout;
+    }
+
+    /* Treats every watched peer as just heard from. Called when the node
+     * itself was paused, as the silence it measured then was its own.
+     */
+    void reset() {
+        long now = System.nanoTime();
+        for(String node : _heard.keySet()) {
+            _heard.put(node, now);
+        }
+    }
+
+    // Records that a watched peer is alive
+    void heard(String node) {
+        if(_heard.containsKey(node)) {
+            _heard.put(node, System.nanoTime());
+        }
+    }
+
+    // Returns the watched peers that have been silent for longer than the timeout
+    List<String> suspects() {
+        long now = System.nanoTime();
+        List<String> suspects = new ArrayList<String>();
+        for(Map.Entry<String, Long> entry : _heard.entrySet()) {
+            if(now - entry.getValue() > _timeout) {
+                suspects.add(entry.getKey());
+            }
+        }
+        return suspects;
+    }
+
+    // Stops watching a peer and returns how long it had been silent in nanoseconds, or -1 if it wasn't watched
+    long forget(String node) {
+        Long heard = _heard.remove(node);
+        return (heard == null) ? -1 : System.nanoTime() - heard;
+    }
+}
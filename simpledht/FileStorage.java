@@ -0,0 +1,102 @@
+package edu.buffalo.cse.cse486586.simpledht;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/***
+ * The FileStorage class keeps every key in a file of its own, named after the
+ * key, inside a single directory. This is the original storage layout of the
+ * provider and is kept for comparison and for reading data written by older
+ * versions.
+ */
+class FileStorage implements Storage {
+
+    private final File _dir;
+
+    FileStorage(File dir) {
+        _dir = dir;
+        _dir.mkdirs();
+    }
+
+    @Override
+    public void put(String key, byte[] value) throws IOException {
+        File file = new File(_dir, key);
+        file.delete();
+        FileOutputStream outputStream = new FileOutputStream(file);
+        try {
+            outputStream.write(value);
+        } finally {
+            outputStream.close();
+        }
+    }
+
+    @Override
+    public void putAll(List<String> keys, List<byte[]> values) throws IOException {
+        for(int i = 0; i < keys.size(); i++) {
+            put(keys.get(i), values.get(i));
+        }
+    }
+
+    // Reads the whole file of the key
+    @Override
+    public ByteBuffer get(String key) throws IOException {
+        FileInputStream inputStream;
+        try {
+            inputStream = new FileInputStream(new File(_dir, key));
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+        try {
+            ByteBuffer value = ByteBuffer.allocate((int) inputStream.getChannel().size());
+            while(value.hasRemaining() && inputStream.getChannel().read(value) >= 0) {
+                // Keep reading until the buffer is full
+            }
+            value.flip();
+            return value;
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    @Override
+    public boolean remove(String key) {
+        return new File(_dir, key).delete();
+    }
+
+    @Override
+    public int clear() {
+        String[] list = _dir.list();
+        int count = 0;
+        if(list != null) {
+            for(int i = 0; i < list.length; i++) {
+                if(new File(_dir, list[i]).delete()) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public List<String> keys() {
+        String[] list = _dir.list();
+        return (list == null) ? new ArrayList<String>() : new ArrayList<String>(Arrays.asList(list));
+    }
+
+    @Override
+    public int size() {
+        String[] list = _dir.list();
+        return (list == null) ? 0 : list.length;
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,96 @@
+package edu.buffalo.cse.cse486586.simpledht;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/***
+ * The KeyIndex class keeps the keys stored on a node sorted by their position
+ * on the ring, in a skip list keyed by the 160-bit hash. Every key is hashed
+ * once as it is added, so finding the keys of an arc is a search and a walk
+ * over just those keys instead of a scan that hashes every stored key. It is
+ * safe to use from several threads at once and its walks never lock.
+ *
+ * Two keys with the same hash would share an entry. With SHA-1 that is not a
+ * concern.
+ */
+class KeyIndex {
+
+    private final ConcurrentSkipListMap<RingId, String> _keys = new ConcurrentSkipListMap<RingId, String>();
+
+    // Adds a key, returning its hash
+    RingId add(String key) {
+        RingId hash = RingId.of(key);
+        _keys.put(hash, key);
+        return hash;
+    }
+
+    void addAll(List<String> keys) {
+        for(String key : keys) {
+            add(key);
+        }
+    }
+
+    void remove(String key) {
+        _keys.remove(RingId.of(key), key);
+    }
+
+    void clear() {
+        _keys.clear();
+    }
+
+    // Returns the number of indexed keys, walking the whole index
+    int size() {
+        return _keys.size();
+    }
+
+    boolean isEmpty() {
+        return _keys.isEmpty();
+    }
+
+    /* Adds the keys whose hash lies in the arc (from, to] going clockwise to
+     * the given lists in ring order, and their hashes to hashes unless it is
+     * null. An arc whose ends are equal is the whole ring.
+     */
+    void range(RingId from, RingId to, List<String> keys, List<RingId> hashes) {
+        for(ConcurrentNavigableMap<RingId, String> part : arc(from, to)) {
+            for(Map.Entry<RingId, String> entry : part.entrySet()) {
+                keys.add(entry.getValue());
+                if(hashes != null) {
+                    hashes.add(entry.getKey());
+                }
+            }
+        }
+    }
+
+    // Returns the number of keys whose hash lies in the arc (from, to]
+    int count(RingId from, RingId to) {
+        int count = 0;
+        for(ConcurrentNavigableMap<RingId, String> part : arc(from, to)) {
+            count += part.size();
+        }
+        return count;
+    }
+
+    /* Returns the entries that follow the given hash in ring order without
+     * wrapping around, or from the lowest hash if it is null.
+     */
+    ConcurrentNavigableMap<RingId, String> after(RingId hash) {
+        return (hash == null) ? _keys : _keys.tailMap(hash, false);
+    }
+
+    // Splits an arc into at most two views of the index where it wraps past zero
+    private List<ConcurrentNavigableMap<RingId, String>> arc(RingId from, RingId to) {
+        int c = from.compareTo(to);
+        if(c < 0) {
+            return Collections.singletonList(_keys.subMap(from, false, to, true));
+        }
+        if(c == 0) {
+            return Collections.<ConcurrentNavigableMap<RingId, String>>singletonList(_keys);
+        }
+        return Arrays.asList(_keys.tailMap(from, false), _keys.headMap(to, true));
+    }
+}
@@ -0,0 +1,922 @@
+package edu.buffalo.cse.cse486586.simpledht;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/***
+ * The LogStorage class is an append-only, log-structured store. Every put or
+ * remove is appended as a record to the active segment file and an in-memory
+ * index maps each live key to the position of its value, so a read is a single
+ * positioned read and a write never touches file system metadata. Segments are
+ * sealed once they pass SEGMENT_SIZE.
+ *
+ * A record is laid out as
+ *
+ *   int   length of the rest of the record
+ *   int   CRC32 of everything after this field
+ *   byte  PUT, PACKED or DELETE
+ *   int   key length
+ *   int   value length
+ *   key and value bytes
+ *
+ * On startup the segments are replayed in order to rebuild the index. A torn
+ * or corrupt record at the end of the last segment, as left by a crash in the
+ * middle of an append, is cut off. Once enough of the sealed segments is
+ * overwritten or removed data, a background thread copies their live records
+ * into a single new segment that takes the id of the newest of them. The copy
+ * holds no tombstones, so it only takes the place of that segment once the
+ * older ones are deleted, and a copy found complete on startup is put in
+ * place the same way. Replaying after a crash at any point still yields the
+ * latest value of every key and none of the removed ones.
+ *
+ * Values are stored as given unless the store's compressor shrinks them, in
+ * which case they are written as a PACKED record and expanded on every read.
+ * Large ones, of MAP_THRESHOLD bytes or more, are always stored as given and
+ * read through a read-only memory mapping of their segment, handed out as a
+ * view of it, so reading them copies nothing onto the heap. Expanding them
+ * would allocate the whole value on every read instead.
+ *
+ * Writes go through a group commit. Records are appended to an in-memory
+ * commit buffer and written to the segment together, so a burst of concurrent
+ * writes costs one write and, unless the durability is ASYNC, one fsync. With
+ * SYNC a write returns once its record is on disk. The first writer to wait
+ * becomes the leader and syncs everything appended so far, and writers that
+ * arrive during its fsync are synced as the next group. With BATCHED the
+ * leader first waits up to the sync window, or until a window's worth of
+ * bytes is pending, so more writes share each fsync at the cost of latency.
+ * It only waits while there are other writers to wait for, that is when one
+ * is waiting already or the last sync covered more than one, so a lone
+ * writer is synced at once as with SYNC.
+ * With ASYNC a write returns at once and a background thread syncs every
+ * window, so a crash can lose the writes of the last window.
+ */
+class LogStorage implements Storage {
+
+    enum Durability {ASYNC, BATCHED, SYNC}
+
+    static final int SEGMENT_SIZE = 4 * 1024 * 1024;
+    static final float COMPACT_RATIO = 0.5f;
+    static final int SYNC_WINDOW = 2;
+    static final int SYNC_BYTES = 1024 * 1024;
+    static final int MAP_THRESHOLD = 64 * 1024;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+    private static final byte PACKED = 3;
+    private static final int HEADER = 4 + 4 + 1 + 4 + 4;
+    private static final String PREFIX = "segment-";
+    private static final String SUFFIX = ".log";
+    private static final String COMPACT_SUFFIX = ".compact";
+    private static final String COMPACTED_SUFFIX = ".compacted";
+
+    private final File _dir;
+    private final Map<String, Entry> _index = new HashMap<String, Entry>();
+    private final TreeMap<Integer, Segment> _segments = new TreeMap<Integer, Segment>();
+    private final ReentrantReadWriteLock _lock = new ReentrantReadWriteLock();
+    private final ReentrantLock _compactLock = new ReentrantLock();
+    private final CRC32 _crc = new CRC32();
+    private final ExecutorService _compactor;
+    private final ScheduledExecutorService _flusher;
+    private final Durability _durability;
+    private final Compressor _compressor;
+    private final long _window;
+    private final int _windowBytes;
+    private final Object _commits = new Object();
+    private final AtomicLong _syncs = new AtomicLong();
+    private ByteBuffer _pending = ByteBuffer.allocate(64 * 1024);
+    private Segment _active;
+    private boolean _compactPending;
+    // Bytes appended since opening, and how many of them are known to be on disk
+    private volatile long _lsn;
+    private long _synced;
+    private boolean _syncing, _windowOpen;
+    // Writers waiting in commit(), and how many of them the last sync covered
+    private int _waiting, _lastGroup;
+
+    LogStorage(File dir) throws IOException {
+        this(dir, Durability.ASYNC, SYNC_WINDOW, SYNC_BYTES, Compressor.NONE);
+    }
+
+    LogStorage(File dir, Durability durability, int window, int windowBytes) throws IOException {
+        this(dir, durability, window, windowBytes, Compressor.NONE);
+    }
+
+    /* Opens the store in the given directory. The window is how long, in
+     * milliseconds, ASYNC waits between syncs and BATCHED holds a group open
+     * for more writes. A group is synced early once windowBytes are pending.
+     * New values are compressed with the given compressor, and values already
+     * stored are read whatever it is.
+     */
+    LogStorage(File dir, Durability durability, int window, int windowBytes, Compressor compressor)
+            throws IOException {
+        _dir = dir;
+        _dir.mkdirs();
+        _durability = durability;
+        _compressor = compressor;
+        _window = TimeUnit.MILLISECONDS.toNanos(Math.max(window, 1));
+        _windowBytes = windowBytes;
+        _compactor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "LogStorage-compactor");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        recover();
+        if(durability == Durability.ASYNC) {
+            _flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "LogStorage-flusher");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            _flusher.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if(_lsn > synced()) {
+                            sync();
+                        }
+                    } catch (IOException e) {
+                        // Retried on the next run
+                    }
+                }
+            }, window, window, TimeUnit.MILLISECONDS);
+        }
+        else {
+            _flusher = null;
+        }
+    }
+
+    @Override
+    public void put(String key, byte[] value) throws IOException {
+        byte[] k = key.getBytes(UTF8);
+        byte[] v = pack(value);
+        boolean packed = (v != null);
+        if(!packed) {
+            v = value;
+        }
+
+        long lsn;
+        _lock.writeLock().lock();
+        try {
+            long position = append(packed ? PACKED : PUT, k, v);
+            lsn = _lsn;
+            Entry old = _index.put(key, new Entry(_active, position + HEADER + k.length, v.length,
+                    HEADER + k.length + v.length, packed));
+            if(old != null) {
+                old.segment.dead += old.size;
+            }
+        } finally {
+            _lock.writeLock().unlock();
+        }
+        commit(lsn);
+        maybeCompact();
+    }
+
+    // Returns the value compressed, or null if it is left as given, see the class doc
+    private byte[] pack(byte[] value) {
+        return (value.length >= MAP_THRESHOLD) ? null : _compressor.compress(value);
+    }
+
+    /* Appends the records of every key to the active segment as one group,
+     * which may run past SEGMENT_SIZE by the size of the batch.
+     */
+    @Override
+    public void putAll(List<String> keys, List<byte[]> values) throws IOException {
+        int count = keys.size();
+        byte[][] k = new byte[count][];
+        byte[][] v = new byte[count][];
+        boolean[] packed = new boolean[count];
+        int length = 0;
+        for(int i = 0; i < count; i++) {
+            k[i] = keys.get(i).getBytes(UTF8);
+            v[i] = pack(values.get(i));
+            packed[i] = (v[i] != null);
+            if(!packed[i]) {
+                v[i] = values.get(i);
+            }
+            length += HEADER + k[i].length + v[i].length;
+        }
+
+        long lsn;
+        _lock.writeLock().lock();
+        try {
+            if(_active.size >= SEGMENT_SIZE) {
+                seal();
+            }
+            reserve(length);
+            for(int i = 0; i < count; i++) {
+                encodeAt(_pending, _crc, packed[i] ? PACKED : PUT, k[i], v[i]);
+            }
+            long position = _active.size;
+            _active.size += length;
+            _lsn += length;
+            lsn = _lsn;
+
+            for(int i = 0; i < count; i++) {
+                int size = HEADER + k[i].length + v[i].length;
+                Entry old = _index.put(keys.get(i), new Entry(_active, position + HEADER + k[i].length, v[i].length, size,
+                        packed[i]));
+                if(old != null) {
+                    old.segment.dead += old.size;
+                }
+                position += size;
+            }
+            if(_pending.position() >= _windowBytes) {
+                flush();
+            }
+        } finally {
+            _lock.writeLock().unlock();
+        }
+        commit(lsn);
+        maybeCompact();
+    }
+
+    @Override
+    public ByteBuffer get(String key) throws IOException {
+        _lock.readLock().lock();
+        try {
+            Entry entry = _index.get(key);
+            if(entry == null) {
+                return null;
+            }
+            return readValue(entry);
+        } finally {
+            _lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(String key) throws IOException {
+        byte[] k = key.getBytes(UTF8);
+
+        long lsn;
+        _lock.writeLock().lock();
+        try {
+            Entry old = _index.remove(key);
+            if(old == null) {
+                return false;
+            }
+            append(DELETE, k, new byte[0]);
+            lsn = _lsn;
+            old.segment.dead += old.size;
+            // The tombstone itself is only needed until the next compaction
+            _active.dead += HEADER + k.length;
+        } finally {
+            _lock.writeLock().unlock();
+        }
+        commit(lsn);
+        maybeCompact();
+        return true;
+    }
+
+    @Override
+    public int clear() throws IOException {
+        _compactLock.lock();
+        _lock.writeLock().lock();
+        try {
+            int count = _index.size();
+            int next = _segments.lastKey() + 1;
+            _pending.clear();
+            for(Segment segment : _segments.values()) {
+                segment.channel.close();
+                segment.file.delete();
+            }
+            _segments.clear();
+            _index.clear();
+            _active = open(next);
+            synchronized (_commits) {
+                _synced = _lsn;
+            }
+            return count;
+        } finally {
+            _lock.writeLock().unlock();
+            _compactLock.unlock();
+        }
+    }
+
+    @Override
+    public List<String> keys() {
+        _lock.readLock().lock();
+        try {
+            return new ArrayList<String>(_index.keySet());
+        } finally {
+            _lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        _lock.readLock().lock();
+        try {
+            return _index.size();
+        } finally {
+            _lock.readLock().unlock();
+        }
+    }
+
+    // Returns the number of fsyncs of the log so far
+    long syncs() {
+        return _syncs.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        _compactor.shutdown();
+        if(_flusher != null) {
+            _flusher.shutdown();
+        }
+        _compactLock.lock();
+        _lock.writeLock().lock();
+        try {
+            flush();
+            _active.channel.force(false);
+            for(Segment segment : _segments.values()) {
+                segment.channel.close();
+            }
+        } finally {
+            _lock.writeLock().unlock();
+            _compactLock.unlock();
+        }
+    }
+
+    /* Appends a single record to the commit buffer of the active segment,
+     * sealing the segment first if it has grown past SEGMENT_SIZE. Returns the
+     * position of the record. Callers hold the write lock.
+     */
+    private long append(byte type, byte[] key, byte[] value) throws IOException {
+
+        if(_active.size >= SEGMENT_SIZE) {
+            seal();
+        }
+
+        int length = HEADER + key.length + value.length;
+        reserve(length);
+        encodeAt(_pending, _crc, type, key, value);
+        long position = _active.size;
+        _active.size += length;
+        _lsn += length;
+        if(_pending.position() >= _windowBytes) {
+            flush();
+        }
+        return position;
+    }
+
+    // Makes room for length more bytes in the commit buffer
+    private void reserve(int length) {
+        if(_pending.remaining() < length) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(2 * _pending.capacity(), _pending.position() + length));
+            _pending.flip();
+            grown.put(_pending);
+            _pending = grown;
+        }
+    }
+
+    /* Writes the commit buffer to the end of the active segment in one write.
+     * Callers hold the write lock.
+     */
+    private void flush() throws IOException {
+        if(_pending.position() == 0) {
+            return;
+        }
+        long start = _active.size - _pending.position();
+        _pending.flip();
+        writeFully(_active, _pending, start);
+        _pending.clear();
+    }
+
+    // Writes out and syncs the active segment and starts the next one. Callers hold the write lock.
+    private void seal() throws IOException {
+        flush();
+        _active.channel.force(false);
+        _active = open(_active.id + 1);
+    }
+
+    /* Returns once the record ending at the given log position is as durable
+     * as the durability asks for. One waiting writer at a time leads and syncs
+     * for everyone that has appended so far, the others wait for it.
+     */
+    private void commit(long lsn) throws IOException {
+
+        if(_durability == Durability.ASYNC) {
+            return;
+        }
+        synchronized (_commits) {
+            _waiting++;
+            while(_synced < lsn) {
+                if(!_syncing) {
+                    _syncing = true;
+                    break;
+                }
+                if(_windowOpen && _lsn - _synced >= _windowBytes) {
+                    // Cut the leader's window short
+                    _windowOpen = false;
+                    _commits.notifyAll();
+                }
+                try {
+                    _commits.wait();
+                } catch (InterruptedException e) {
+                    _waiting--;
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+            if(_synced >= lsn) {
+                _waiting--;
+                return;
+            }
+        }
+
+        try {
+            if(_durability == Durability.BATCHED) {
+                long deadline = System.nanoTime() + _window;
+                synchronized (_commits) {
+                    _windowOpen = _waiting > 1 || _lastGroup > 1;
+                    long left;
+                    while(_windowOpen && _lsn - _synced < _windowBytes && (left = deadline - System.nanoTime()) > 0) {
+                        try {
+                            TimeUnit.NANOSECONDS.timedWait(_commits, left);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            break;
+                        }
+                    }
+                    _windowOpen = false;
+                }
+            }
+            synchronized (_commits) {
+                _lastGroup = _waiting;
+            }
+            sync();
+        } finally {
+            synchronized (_commits) {
+                _waiting--;
+                _syncing = false;
+                _commits.notifyAll();
+            }
+        }
+    }
+
+    /* Writes out the commit buffer and syncs the active segment. The fsync
+     * runs without the lock, so writers keep appending the next group in the
+     * meantime.
+     */
+    private void sync() throws IOException {
+
+        long target;
+        FileChannel channel;
+        _lock.writeLock().lock();
+        try {
+            target = _lsn;
+            flush();
+            channel = _active.channel;
+        } finally {
+            _lock.writeLock().unlock();
+        }
+        try {
+            channel.force(false);
+        } catch (ClosedChannelException e) {
+            // Closed by close(), which syncs itself, or by clear(), which dropped the records
+        }
+        _syncs.incrementAndGet();
+        synchronized (_commits) {
+            _synced = Math.max(_synced, target);
+        }
+    }
+
+    private long synced() {
+        synchronized (_commits) {
+            return _synced;
+        }
+    }
+
+    /* Reads the value of a live key, which may still be in the commit buffer,
+     * expanding it if it is compressed. Uncompressed values of at least
+     * MAP_THRESHOLD bytes are returned as a read-only view of the mapped
+     * segment, without copying them. Callers hold the read lock.
+     */
+    private ByteBuffer readValue(Entry entry) throws IOException {
+        long flushed = _active.size - _pending.position();
+        if(entry.segment == _active && entry.offset >= flushed) {
+            int offset = (int) (entry.offset - flushed);
+            if(entry.packed) {
+                return ByteBuffer.wrap(Compressor.decompress(_pending.array(), offset, entry.length));
+            }
+            byte[] value = new byte[entry.length];
+            System.arraycopy(_pending.array(), offset, value, 0, entry.length);
+            return ByteBuffer.wrap(value);
+        }
+        if(entry.packed) {
+            return ByteBuffer.wrap(Compressor.decompress(read(entry), 0, entry.length));
+        }
+        if(entry.length >= MAP_THRESHOLD) {
+            return entry.segment.map(entry.offset, entry.length);
+        }
+        return ByteBuffer.wrap(read(entry));
+    }
+
+    // Reads the value an index entry points at as it is stored
+    private static byte[] read(Entry entry) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(entry.length);
+        readFully(entry.segment, buffer, entry.offset);
+        return buffer.array();
+    }
+
+    private static void readFully(Segment segment, ByteBuffer buffer, long position) throws IOException {
+        while(buffer.hasRemaining()) {
+            if(segment.channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Segment " + segment.id + " ends early");
+            }
+        }
+    }
+
+    /* Rebuilds the index by replaying every segment in order. A compaction
+     * interrupted while copying is deleted, one interrupted after the copy
+     * was complete is finished, see install(). A torn tail of the last
+     * segment is truncated so new records are appended after the last good
+     * one.
+     */
+    private void recover() throws IOException {
+
+        String[] names = _dir.list();
+        TreeMap<Integer, File> files = new TreeMap<Integer, File>();
+        TreeMap<Integer, File> compacted = new TreeMap<Integer, File>();
+        if(names != null) {
+            for(String name : names) {
+                if(name.endsWith(COMPACT_SUFFIX)) {
+                    new File(_dir, name).delete();
+                }
+                else if(name.startsWith(PREFIX) && name.endsWith(SUFFIX)) {
+                    putId(files, name, SUFFIX);
+                }
+                else if(name.startsWith(PREFIX) && name.endsWith(COMPACTED_SUFFIX)) {
+                    putId(compacted, name, COMPACTED_SUFFIX);
+                }
+            }
+        }
+        for(Map.Entry<Integer, File> done : compacted.entrySet()) {
+            List<File> replaced = new ArrayList<File>(files.headMap(done.getKey(), true).values());
+            files.headMap(done.getKey(), true).clear();
+            files.put(done.getKey(), install(done.getKey(), done.getValue(), replaced));
+        }
+
+        for(Map.Entry<Integer, File> file : files.entrySet()) {
+            Segment segment = open(file.getKey());
+            long end = replay(segment);
+            if(end < segment.size) {
+                if(file.getKey().equals(files.lastKey())) {
+                    segment.channel.truncate(end);
+                    segment.size = end;
+                }
+                else {
+                    segment.dead += segment.size - end;
+                }
+            }
+        }
+
+        if(_segments.isEmpty()) {
+            _active = open(1);
+        }
+        else {
+            _active = _segments.lastEntry().getValue();
+        }
+    }
+
+    // Adds the segment file with the given name to the files by its id, unless the name isn't one of ours
+    private void putId(Map<Integer, File> files, String name, String suffix) {
+        try {
+            files.put(Integer.parseInt(name.substring(PREFIX.length(), name.length() - suffix.length())),
+                    new File(_dir, name));
+        } catch (NumberFormatException e) {
+            // Not one of ours
+        }
+    }
+
+    /* Puts a complete compacted segment in place of the segments it was
+     * copied from and returns its file. The replaced segments are deleted
+     * first, as the copy holds no tombstones and a removed key would come
+     * back from an older segment replayed before it. Until it is renamed,
+     * recover() finishes the job after a crash.
+     */
+    private File install(int id, File compacted, List<File> replaced) throws IOException {
+        for(File file : replaced) {
+            if(file.exists() && !file.delete()) {
+                throw new IOException("Can't delete " + file.getName());
+            }
+        }
+        File target = new File(_dir, PREFIX + id + SUFFIX);
+        if(!compacted.renameTo(target)) {
+            throw new IOException("Can't replace segment " + id);
+        }
+        return target;
+    }
+
+    // Applies the records of a segment to the index, returning where the valid records end
+    private long replay(Segment segment) throws IOException {
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER);
+        long position = 0;
+        while(position + HEADER <= segment.size) {
+            header.clear();
+            readFully(segment, header, position);
+            int length = header.getInt(0);
+            int keyLength = header.getInt(9);
+            int valueLength = header.getInt(13);
+            byte type = header.get(8);
+            if(keyLength < 0 || valueLength < 0 || length != HEADER - 4 + keyLength + valueLength
+                    || position + 4 + length > segment.size || (type != PUT && type != PACKED && type != DELETE)) {
+                break;
+            }
+
+            ByteBuffer body = ByteBuffer.allocate(length - 4);
+            readFully(segment, body, position + 8);
+            _crc.reset();
+            _crc.update(body.array(), 0, body.capacity());
+            if((int) _crc.getValue() != header.getInt(4)) {
+                break;
+            }
+
+            String key = new String(body.array(), HEADER - 8, keyLength, UTF8);
+            int size = 4 + length;
+            Entry old;
+            if(type != DELETE) {
+                old = _index.put(key, new Entry(segment, position + HEADER + keyLength, valueLength, size,
+                        type == PACKED));
+            }
+            else {
+                old = _index.remove(key);
+                segment.dead += size;
+            }
+            if(old != null) {
+                old.segment.dead += old.size;
+            }
+            position += size;
+        }
+        return position;
+    }
+
+    private Segment open(int id) throws IOException {
+        Segment segment = new Segment(id, new File(_dir, PREFIX + id + SUFFIX));
+        _segments.put(id, segment);
+        return segment;
+    }
+
+    // Schedules a compaction once enough of the sealed segments is garbage
+    private void maybeCompact() {
+        _lock.readLock().lock();
+        try {
+            long size = 0, dead = 0;
+            for(Segment segment : _segments.values()) {
+                if(segment != _active) {
+                    size += segment.size;
+                    dead += segment.dead;
+                }
+            }
+            if(size < SEGMENT_SIZE || dead < size * COMPACT_RATIO) {
+                return;
+            }
+        } finally {
+            _lock.readLock().unlock();
+        }
+
+        synchronized (this) {
+            if(_compactPending) {
+                return;
+            }
+            _compactPending = true;
+        }
+        _compactor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    compact();
+                } catch (IOException e) {
+                    // The old segments are left in place and retried on the next trigger
+                } finally {
+                    synchronized (LogStorage.this) {
+                        _compactPending = false;
+                    }
+                }
+            }
+        });
+    }
+
+    /* Copies the live records of every sealed segment into one new segment.
+     * The copy is written to a temporary file without holding the index lock,
+     * synced and renamed to mark it complete. Once the index is repointed the
+     * sealed segments are deleted and the copy takes the place of the newest
+     * of them, see install(). Keys written or removed during the copy keep
+     * their newer entry.
+     */
+    void compact() throws IOException {
+
+        _compactLock.lock();
+        try {
+            List<Segment> sealed = new ArrayList<Segment>();
+            Map<String, Entry> live = new HashMap<String, Entry>();
+            _lock.readLock().lock();
+            try {
+                for(Segment segment : _segments.values()) {
+                    if(segment != _active) {
+                        sealed.add(segment);
+                    }
+                }
+                if(sealed.isEmpty()) {
+                    return;
+                }
+                for(Map.Entry<String, Entry> entry : _index.entrySet()) {
+                    if(entry.getValue().segment != _active) {
+                        live.put(entry.getKey(), entry.getValue());
+                    }
+                }
+            } finally {
+                _lock.readLock().unlock();
+            }
+
+            int id = sealed.get(sealed.size() - 1).id;
+            File temp = new File(_dir, PREFIX + id + COMPACT_SUFFIX);
+            File done = new File(_dir, PREFIX + id + COMPACTED_SUFFIX);
+            temp.delete();
+            Segment compacted = new Segment(id, temp);
+            Map<String, Entry> moved = new HashMap<String, Entry>();
+            try {
+                copy(live, compacted, moved);
+                compacted.channel.force(true);
+                if(!temp.renameTo(done)) {
+                    throw new IOException("Can't complete segment " + id);
+                }
+                compacted.file = done;
+            } catch (IOException e) {
+                compacted.channel.close();
+                temp.delete();
+                throw e;
+            }
+
+            _lock.writeLock().lock();
+            try {
+                for(Map.Entry<String, Entry> entry : moved.entrySet()) {
+                    String key = entry.getKey();
+                    if(_index.get(key) == live.get(key)) {
+                        _index.put(key, entry.getValue());
+                    }
+                    else {
+                        compacted.dead += entry.getValue().size;
+                    }
+                }
+                List<File> replaced = new ArrayList<File>();
+                for(Segment segment : sealed) {
+                    segment.channel.close();
+                    replaced.add(segment.file);
+                    _segments.remove(segment.id);
+                }
+                _segments.put(id, compacted);
+                // Left to recover() if it fails, the index already reads the copy
+                compacted.file = install(id, done, replaced);
+            } finally {
+                _lock.writeLock().unlock();
+            }
+        } finally {
+            _compactLock.unlock();
+        }
+    }
+
+    /* Writes the given live entries to the compacted segment as they are
+     * stored, recording where each one landed.
+     */
+    private void copy(Map<String, Entry> live, Segment compacted, Map<String, Entry> moved) throws IOException {
+
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        CRC32 crc = new CRC32();
+        for(Map.Entry<String, Entry> entry : live.entrySet()) {
+            byte[] k = entry.getKey().getBytes(UTF8);
+            Entry old = entry.getValue();
+            byte[] v = read(old);
+            buffer = encode(buffer, crc, old.packed ? PACKED : PUT, k, v);
+            int length = buffer.remaining();
+            long position = compacted.size;
+            writeFully(compacted, buffer, position);
+            compacted.size += length;
+            moved.put(entry.getKey(), new Entry(compacted, position + HEADER + k.length, v.length, length, old.packed));
+        }
+    }
+
+    /* Encodes a record into the buffer, growing it if needed, and returns the
+     * buffer flipped and ready to be written.
+     */
+    private static ByteBuffer encode(ByteBuffer buffer, CRC32 crc, byte type, byte[] key, byte[] value) {
+
+        int length = HEADER + key.length + value.length;
+        if(buffer.capacity() < length) {
+            buffer = ByteBuffer.allocate(Math.max(length, 2 * buffer.capacity()));
+        }
+        buffer.clear();
+        encodeAt(buffer, crc, type, key, value);
+        buffer.flip();
+        return buffer;
+    }
+
+    // Writes a record at the current position of a buffer that has room for it
+    private static void encodeAt(ByteBuffer buffer, CRC32 crc, byte type, byte[] key, byte[] value) {
+
+        int start = buffer.position();
+        int length = HEADER + key.length + value.length;
+        buffer.putInt(length - 4);
+        buffer.putInt(0);
+        buffer.put(type);
+        buffer.putInt(key.length);
+        buffer.putInt(value.length);
+        buffer.put(key);
+        buffer.put(value);
+        crc.reset();
+        crc.update(buffer.array(), start + 8, length - 8);
+        buffer.putInt(start + 4, (int) crc.getValue());
+    }
+
+    private static void writeFully(Segment segment, ByteBuffer buffer, long position) throws IOException {
+        while(buffer.hasRemaining()) {
+            segment.channel.write(buffer, position + buffer.position());
+        }
+    }
+
+    /***
+     * A single segment file of the log.
+     */
+    private static class Segment {
+
+        final int id;
+        final FileChannel channel;
+        File file;
+        long size;
+        long dead;
+
+        private MappedByteBuffer _map;
+
+        Segment(int id, File file) throws IOException {
+            this.id = id;
+            this.file = file;
+            this.channel = new RandomAccessFile(file, "rw").getChannel();
+            this.size = channel.size();
+        }
+
+        /* Returns a read-only view of the given bytes of the segment. The file
+         * is mapped whole, and mapped again once it has grown past the mapping.
+         * A view stays readable after the segment is closed or compacted away.
+         */
+        synchronized ByteBuffer map(long offset, int length) throws IOException {
+            if(_map == null || _map.capacity() < offset + length) {
+                _map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            ByteBuffer view = _map.duplicate();
+            view.limit((int) (offset + length));
+            view.position((int) offset);
+            return view.slice();
+        }
+    }
+
+    /***
+     * The index entry of a live key, pointing at its value inside a segment.
+     * The length is that of the value as stored, compressed or not.
+     */
+    private static class Entry {
+
+        final Segment segment;
+        final long offset;
+        final int length;
+        final int size;
+        final boolean packed;
+
+        Entry(Segment segment, long offset, int length, int size, boolean packed) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.size = size;
+            this.packed = packed;
+        }
+    }
+}
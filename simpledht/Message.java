@@ -0,0 +1,190 @@
+package edu.buffalo.cse.cse486586.simpledht;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/***
+ * The Message class is a single frame of the node to node protocol. A frame
+ * names the node that sent it by id, while the address it goes to only picks
+ * the connection and isn't sent. Keys and values are kept as raw bytes, so
+ * MessageCodec.read() can decode into a message that already holds a frame
+ * without allocating, the sender's id included as long as it stays the same.
+ * PeerPool decodes every frame of a response into the same message, and the
+ * node every frame that needs no reply, see DhtNode.Connection. A null key or
+ * value is encoded as a length of -1 and takes the place of the "---"
+ * placeholder of the old string protocol. Values are opaque bytes, the string
+ * accessors are for the values of the protocol itself such as counts and
+ * tokens.
+ */
+class Message {
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // Operation codes
+    static final byte INSERT = 1;
+    static final byte DELETE = 2;
+    static final byte QUERY = 3;
+    static final byte QUERY_RESP = 4;
+    static final byte JOIN = 5;
+    static final byte MEMBER = 8;
+    static final byte INSERT_BATCH = 9;
+    static final byte BATCH_RESP = 10;
+    static final byte SCAN = 11;
+    static final byte COUNT = 12;
+    static final byte REPLICATE = 13;
+    static final byte REPLICATE_BATCH = 14;
+    static final byte CLEAR = 15;
+    static final byte METRICS = 16;
+    static final byte REDIRECT = 17;
+    static final byte PING = 18;
+    static final byte DEAD = 19;
+
+    // More frames of the same response follow this one
+    static final byte FLAG_MORE = 1;
+    // The value is compressed on the wire, set and cleared by MessageCodec
+    static final byte FLAG_COMPRESSED = 2;
+
+    // Per-key outcomes carried in the value of a BATCH_RESP, one byte per key
+    static final byte STORED = 1;
+    static final byte FAILED = 0;
+
+    private static final AtomicLong _ids = new AtomicLong();
+
+    byte op;
+    byte flags;
+    // Id of the sending node and its encoded form, and the address of the receiving node
+    String from;
+    byte[] fromBytes;
+    String to;
+    long id;
+    int hops;
+    byte[] key = new byte[32];
+    int keyLength = -1;
+    byte[] value = new byte[64];
+    int valueLength = -1;
+    // Bytes the frame took up on the wire when it was read
+    int wireLength;
+
+    /* Builds a message from the string form used by the routing code, sent by
+     * the node with the given id to the node at the given address. Every
+     * message gets a request id that is unique on this node and is echoed
+     * back in the frames of its response.
+     */
+    static Message of(byte op, String from, String to, String key, String value, int hops) {
+        Message msg = new Message();
+        msg.id = _ids.incrementAndGet();
+        msg.op = op;
+        msg.setFrom(from);
+        msg.to = to;
+        msg.hops = hops;
+        msg.setKey(key);
+        msg.setValue(value);
+        return msg;
+    }
+
+    // Checks whether messages with the given operation are answered with a response
+    static boolean expectsReply(byte op) {
+        return op == QUERY || op == INSERT_BATCH || op == SCAN || op == COUNT || op == CLEAR || op == METRICS
+                || op == PING;
+    }
+
+    boolean hasFlag(byte flag) {
+        return (flags & flag) != 0;
+    }
+
+    void setFrom(String s) {
+        from = s;
+        fromBytes = s.getBytes(UTF8);
+    }
+
+    void setKey(String s) {
+        if(s == null) {
+            keyLength = -1;
+            return;
+        }
+        byte[] bytes = s.getBytes(UTF8);
+        key = bytes;
+        keyLength = bytes.length;
+    }
+
+    void setValue(String s) {
+        if(s == null) {
+            valueLength = -1;
+            return;
+        }
+        byte[] bytes = s.getBytes(UTF8);
+        value = bytes;
+        valueLength = bytes.length;
+    }
+
+    void setBytes(byte[] b) {
+        if(b == null) {
+            valueLength = -1;
+            return;
+        }
+        value = b;
+        valueLength = b.length;
+    }
+
+    // Copies the remaining bytes of a buffer into the value without moving the buffer
+    void setBytes(ByteBuffer b) {
+        if(b == null) {
+            valueLength = -1;
+            return;
+        }
+        b.duplicate().get(valueBuffer(b.remaining()), 0, b.remaining());
+    }
+
+    String key() {
+        return (keyLength < 0) ? null : new String(key, 0, keyLength, UTF8);
+    }
+
+    String value() {
+        return (valueLength < 0) ? null : new String(value, 0, valueLength, UTF8);
+    }
+
+    // Returns a copy of the value bytes, or null if there is no value
+    byte[] bytes() {
+        return (valueLength < 0) ? null : Arrays.copyOf(value, valueLength);
+    }
+
+    // Returns the value bytes of a message nobody reuses without copying them
+    ByteBuffer buffer() {
+        return (valueLength < 0) ? null : ByteBuffer.wrap(value, 0, valueLength).slice();
+    }
+
+    /* Returns the bytes of a buffer as an array, the backing array itself when
+     * the buffer covers all of it.
+     */
+    static byte[] toArray(ByteBuffer b) {
+        if(b == null) {
+            return null;
+        }
+        if(b.hasArray() && b.arrayOffset() == 0 && b.position() == 0 && b.remaining() == b.array().length) {
+            return b.array();
+        }
+        byte[] bytes = new byte[b.remaining()];
+        b.duplicate().get(bytes);
+        return bytes;
+    }
+
+    // Makes sure the key array can hold a key of the given length, growing it if needed
+    byte[] keyBuffer(int length) {
+        if(key.length < length) {
+            key = new byte[Math.max(length, 2 * key.length)];
+        }
+        keyLength = length;
+        return key;
+    }
+
+    // Makes sure the value array can hold a value of the given length, growing it if needed
+    byte[] valueBuffer(int length) {
+        if(value.length < length) {
+            value = new byte[Math.max(length, 2 * value.length)];
+        }
+        valueLength = length;
+        return value;
+    }
+}
@@ -0,0 +1,252 @@
+package edu.buffalo.cse.cse486586.simpledht;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+/***
+ * The MessageCodec class writes and reads Message frames. A frame is laid out
+ * as follows, all numbers big-endian:
+ *
+ *   int   length of the rest of the frame
+ *   byte  protocol version
+ *   byte  operation code
+ *   byte  flags
+ *   long  request id
+ *   int   hop count
+ *   int   sender id length, followed by the UTF-8 id of the sending node
+ *   int   key length (-1 for none), followed by the key bytes
+ *   int   value length (-1 for none), followed by the value bytes
+ *
+ * Values are carried as raw bytes. An INSERT_BATCH frame carries no key. Its
+ * value holds an int count followed by an int length and the bytes of every
+ * key and value in turn, and the BATCH_RESP to it holds one outcome byte per
+ * key in the same order.
+ *
+ * The writer may compress the value of a frame, a whole batch at once, in
+ * which case it sets FLAG_COMPRESSED and the value is in the format of
+ * Compressor. The reader expands it whatever its own compressor is, so the
+ * message handed on always holds the original value and no flag.
+ *
+ * Both directions work directly on the buffered connection streams, and reads
+ * fill the arrays of the message passed in, so the hot path only allocates
+ * when a key or value outgrows the arrays of a reused message or the sender
+ * on a connection changes.
+ */
+class MessageCodec {
+
+    static final byte VERSION = 3;
+    static final int HEADER = 3 + 8 + 4;
+    static final int MAX_ID = 256;
+    static final int MAX_FRAME = 16 * 1024 * 1024;
+    // Batches are split so they stay well below MAX_FRAME
+    static final int MAX_BATCH = MAX_FRAME / 4;
+    // The largest value a node accepts, which leaves room in a frame for the rest of it
+    static final int MAX_VALUE = MAX_FRAME - 64 * 1024;
+
+    /***
+     * Thrown by write() for a frame the peer would reject as too long. Nothing
+     * has been written yet, so the connection is still good.
+     */
+    static class FrameTooLongException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        FrameTooLongException(int length) {
+            super("Frame of " + length + " bytes is longer than " + MAX_FRAME);
+        }
+    }
+
+    static void write(DataOutputStream out, Message msg) throws IOException {
+        write(out, msg, Compressor.NONE);
+    }
+
+    /* Writes a single frame, its value compressed if the compressor finds it
+     * worth it, and flushes it to the peer. The message itself is left as is,
+     * so it can be written to several peers. Returns the bytes written. A
+     * frame longer than read() accepts is refused before anything is written
+     * with a FrameTooLongException.
+     */
+    static int write(DataOutputStream out, Message msg, Compressor compressor) throws IOException {
+
+        int keyLength = Math.max(msg.keyLength, 0);
+        byte flags = (byte) (msg.flags & ~Message.FLAG_COMPRESSED);
+        byte[] value = msg.value;
+        int valueLength = msg.valueLength;
+        if(valueLength > 0) {
+            byte[] packed = compressor.compress(msg.value, 0, msg.valueLength);
+            if(packed != null) {
+                flags |= Message.FLAG_COMPRESSED;
+                value = packed;
+                valueLength = packed.length;
+            }
+        }
+        int length = HEADER + 12 + msg.fromBytes.length + keyLength + Math.max(valueLength, 0);
+        if(length > MAX_FRAME) {
+            throw new FrameTooLongException(length);
+        }
+
+        out.writeInt(length);
+        out.writeByte(VERSION);
+        out.writeByte(msg.op);
+        out.writeByte(flags);
+        out.writeLong(msg.id);
+        out.writeInt(msg.hops);
+        out.writeInt(msg.fromBytes.length);
+        out.write(msg.fromBytes);
+        out.writeInt(msg.keyLength);
+        out.write(msg.key, 0, keyLength);
+        out.writeInt(valueLength);
+        out.write(value, 0, Math.max(valueLength, 0));
+        out.flush();
+        return 4 + length;
+    }
+
+    /* Reads a single frame into the given message, reusing its key and value
+     * arrays, and expands its value if it is compressed. Frames with an
+     * unknown version or inconsistent lengths are rejected since the stream
+     * can't be resynchronized after them.
+     */
+    static Message read(DataInputStream in, Message msg) throws IOException {
+
+        int length = in.readInt();
+        if(length < HEADER + 12 || length > MAX_FRAME) {
+            throw new IOException("Bad frame length " + length);
+        }
+        byte version = in.readByte();
+        if(version != VERSION) {
+            throw new IOException("Unsupported protocol version " + version);
+        }
+
+        msg.op = in.readByte();
+        msg.flags = in.readByte();
+        msg.id = in.readLong();
+        msg.hops = in.readInt();
+        msg.to = null;
+
+        int remaining = length - HEADER - 12;
+        int fromLength = in.readInt();
+        if(fromLength < 0 || fromLength > Math.min(remaining, MAX_ID)) {
+            throw new IOException("Bad sender length " + fromLength);
+        }
+        readFrom(in, msg, fromLength);
+        remaining -= fromLength;
+
+        int keyLength = in.readInt();
+        if(keyLength > remaining) {
+            throw new IOException("Bad key length " + keyLength);
+        }
+        if(keyLength < 0) {
+            msg.keyLength = -1;
+        }
+        else {
+            in.readFully(msg.keyBuffer(keyLength), 0, keyLength);
+            remaining -= keyLength;
+        }
+
+        int valueLength = in.readInt();
+        if(valueLength != remaining && !(valueLength == -1 && remaining == 0)) {
+            throw new IOException("Bad value length " + valueLength);
+        }
+        if(valueLength < 0) {
+            msg.valueLength = -1;
+        }
+        else if(msg.hasFlag(Message.FLAG_COMPRESSED)) {
+            byte[] packed = new byte[valueLength];
+            in.readFully(packed);
+            int original = Compressor.length(packed, 0, valueLength);
+            if(original > MAX_FRAME) {
+                throw new IOException("Bad value length " + original);
+            }
+            Compressor.decompress(packed, 0, valueLength, msg.valueBuffer(original));
+            msg.flags &= ~Message.FLAG_COMPRESSED;
+        }
+        else {
+            in.readFully(msg.valueBuffer(valueLength), 0, valueLength);
+        }
+
+        msg.wireLength = 4 + length;
+        return msg;
+    }
+
+    /* Reads the id of the sending node, keeping the one the message already
+     * holds if it is the same, as it is for every frame on a connection but
+     * the first. The id is read into the key array, which the key overwrites.
+     */
+    private static void readFrom(DataInputStream in, Message msg, int length) throws IOException {
+        byte[] bytes = msg.keyBuffer(length);
+        in.readFully(bytes, 0, length);
+        byte[] current = msg.fromBytes;
+        if(current != null && current.length == length) {
+            boolean same = true;
+            for(int i = 0; i < length && same; i++) {
+                same = current[i] == bytes[i];
+            }
+            if(same) {
+                return;
+            }
+        }
+        msg.fromBytes = Arrays.copyOf(bytes, length);
+        msg.from = new String(msg.fromBytes, Message.UTF8);
+    }
+
+    // Packs the given keys and values into the value of a batch message
+    static void writeBatch(Message msg, List<String> keys, List<byte[]> values) {
+
+        int count = keys.size();
+        byte[][] k = new byte[count][];
+        byte[][] v = new byte[count][];
+        int length = 4;
+        for(int i = 0; i < count; i++) {
+            k[i] = keys.get(i).getBytes(Message.UTF8);
+            v[i] = values.get(i);
+            length += 8 + k[i].length + v[i].length;
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(msg.valueBuffer(length), 0, length);
+        buffer.putInt(count);
+        for(int i = 0; i < count; i++) {
+            buffer.putInt(k[i].length);
+            buffer.put(k[i]);
+            buffer.putInt(v[i].length);
+            buffer.put(v[i]);
+        }
+    }
+
+    // Returns the bytes a key and value take up in a batch
+    static int batchSize(String key, byte[] value) {
+        return 8 + key.length() * 3 + value.length;
+    }
+
+    // Unpacks the keys and values of a batch message into the given lists
+    static void readBatch(Message msg, List<String> keys, List<byte[]> values) throws IOException {
+
+        if(msg.valueLength < 4) {
+            throw new IOException("Bad batch length " + msg.valueLength);
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(msg.value, 0, msg.valueLength);
+        try {
+            int count = buffer.getInt();
+            for(int i = 0; i < count; i++) {
+                keys.add(new String(readBytes(buffer), Message.UTF8));
+                values.add(readBytes(buffer));
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Batch ends early");
+        }
+    }
+
+    private static byte[] readBytes(ByteBuffer buffer) throws IOException {
+        int length = buffer.getInt();
+        if(length < 0 || length > buffer.remaining()) {
+            throw new IOException("Bad batch entry length " + length);
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return bytes;
+    }
+}
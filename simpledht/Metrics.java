@@ -0,0 +1,174 @@
+package edu.buffalo.cse.cse486586.simpledht;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/***
+ * The Metrics class collects the counters, gauges and histograms of a node.
+ * Recording is a few atomic adds with no locking or allocation once a name
+ * has been seen, so it can stay on in the hot paths. Counters only go up,
+ * gauges are read from their source when a snapshot is taken, and histograms
+ * keep a distribution of values such as latencies in nanoseconds or hop
+ * counts.
+ */
+class Metrics {
+
+    /***
+     * A value read when the metrics are reported, such as a queue length.
+     */
+    interface Gauge {
+        long value();
+    }
+
+    private final ConcurrentHashMap<String, AtomicLong> _counters = new ConcurrentHashMap<String, AtomicLong>();
+    private final ConcurrentHashMap<String, Histogram> _histograms = new ConcurrentHashMap<String, Histogram>();
+    private final ConcurrentHashMap<String, Gauge> _gauges = new ConcurrentHashMap<String, Gauge>();
+
+    void count(String name, long delta) {
+        AtomicLong counter = _counters.get(name);
+        if(counter == null) {
+            AtomicLong fresh = new AtomicLong();
+            counter = _counters.putIfAbsent(name, fresh);
+            if(counter == null) {
+                counter = fresh;
+            }
+        }
+        counter.addAndGet(delta);
+    }
+
+    void record(String name, long value) {
+        Histogram histogram = _histograms.get(name);
+        if(histogram == null) {
+            Histogram fresh = new Histogram();
+            histogram = _histograms.putIfAbsent(name, fresh);
+            if(histogram == null) {
+                histogram = fresh;
+            }
+        }
+        histogram.record(value);
+    }
+
+    // Records the time since a System.nanoTime() reading
+    void time(String name, long start) {
+        record(name, System.nanoTime() - start);
+    }
+
+    void gauge(String name, Gauge gauge) {
+        _gauges.put(name, gauge);
+    }
+
+    /* Returns every metric as a name and a value, sorted by name. A histogram
+     * of latencies, named ".time" by convention, is reported in microseconds
+     * as its count, mean, 50th, 90th and 99th percentile and maximum. Other
+     * histograms are reported in their own unit.
+     */
+    Map<String, String> snapshot() {
+
+        Map<String, String> snapshot = new TreeMap<String, String>();
+        for(Map.Entry<String, AtomicLong> counter : _counters.entrySet()) {
+            snapshot.put(counter.getKey(), String.valueOf(counter.getValue().get()));
+        }
+        for(Map.Entry<String, Gauge> gauge : _gauges.entrySet()) {
+            snapshot.put(gauge.getKey(), String.valueOf(gauge.getValue().value()));
+        }
+        for(Map.Entry<String, Histogram> histogram : _histograms.entrySet()) {
+            String name = histogram.getKey();
+            Histogram h = histogram.getValue();
+            double scale = name.endsWith(".time") ? 1000 : 1;
+            String unit = name.endsWith(".time") ? " us" : "";
+            snapshot.put(name + ".count", String.valueOf(h.count()));
+            snapshot.put(name + ".mean", String.format("%.1f", h.mean() / scale) + unit);
+            snapshot.put(name + ".p50", String.format("%.1f", h.percentile(0.50) / scale) + unit);
+            snapshot.put(name + ".p90", String.format("%.1f", h.percentile(0.90) / scale) + unit);
+            snapshot.put(name + ".p99", String.format("%.1f", h.percentile(0.99) / scale) + unit);
+            snapshot.put(name + ".max", String.format("%.1f", h.max() / scale) + unit);
+        }
+        return snapshot;
+    }
+
+    // Adds the snapshot to the given lists as rows of names and values
+    void snapshot(List<String> names, List<String> values) {
+        for(Map.Entry<String, String> metric : snapshot().entrySet()) {
+            names.add(metric.getKey());
+            values.add(metric.getValue());
+        }
+    }
+
+    /***
+     * A histogram of non-negative values with four buckets per power of two,
+     * so a reported percentile is within 25% of the true value. Values below
+     * eight are counted exactly.
+     */
+    static final class Histogram {
+
+        private static final int BUCKETS = 4 * 62 + 4;
+
+        private final AtomicLongArray _buckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong _count = new AtomicLong();
+        private final AtomicLong _sum = new AtomicLong();
+        private final AtomicLong _max = new AtomicLong();
+
+        void record(long value) {
+            value = Math.max(value, 0);
+            _buckets.incrementAndGet(bucket(value));
+            _count.incrementAndGet();
+            _sum.addAndGet(value);
+            long max = _max.get();
+            while(value > max && !_max.compareAndSet(max, value)) {
+                max = _max.get();
+            }
+        }
+
+        long count() {
+            return _count.get();
+        }
+
+        double mean() {
+            long count = _count.get();
+            return (count == 0) ? 0 : (double) _sum.get() / count;
+        }
+
+        long max() {
+            return _max.get();
+        }
+
+        // Returns the upper bound of the bucket the given fraction of values falls into
+        long percentile(double p) {
+            long count = _count.get();
+            if(count == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(p * count);
+            long seen = 0;
+            for(int i = 0; i < BUCKETS; i++) {
+                seen += _buckets.get(i);
+                if(seen >= rank) {
+                    return Math.min(upper(i), _max.get());
+                }
+            }
+            return _max.get();
+        }
+
+        static int bucket(long value) {
+            if(value < 4) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) (value >>> (exponent - 2)) & 3;
+            return 4 * (exponent - 1) + sub;
+        }
+
+        static long upper(int bucket) {
+            if(bucket < 4) {
+                return bucket;
+            }
+            int exponent = bucket / 4 + 1;
+            int sub = bucket % 4;
+            return ((4L + sub + 1) << (exponent - 2)) - 1;
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package edu.buffalo.cse.cse486586.simpledht;
+
+/***
+ * NodeLog is where a DhtNode writes its log, so the node doesn't depend on
+ * android.util.Log. The provider logs through Android, NodeMain to the
+ * console.
+ */
+interface NodeLog {
+
+    // Logs a verbose progress message
+    void v(String message);
+
+    // Logs an error
+    void e(String message);
+}
@@ -0,0 +1,120 @@
+package edu.buffalo.cse.cse486586.simpledht;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/***
+ * NodeMain runs a single DhtNode as a plain Java process, so a ring can be
+ * started on any machine without emulators. A node id is the host:port
+ * address the other nodes reach it at, or like on the emulators a number N
+ * for a node reached at port 2N on the peer host. Each node joins through any
+ * of the seeds, and the seeds find each other, so any number of nodes can be
+ * started at once. The node runs until the process is stopped.
+ *
+ * Usage: NodeMain id [options]
+ *   --port p        port to listen on, the port of the id or 2 * id by default
+ *   --seeds ids     comma separated ids of the nodes to join through, 5554 by default
+ *   --host address  host the nodes with numeric ids run on, the loopback address by default
+ *   --dir path      directory of the local store, ./node-id by default
+ *   --durability d  async, batched or sync commits of the local store, sync by default
+ *   --sync-window n milliseconds a batched commit waits for more writes, or between async syncs
+ *   --compression c none, fast or deflate compression on disk and on the wire, fast by default
+ *   --quiet         only log errors
+ *   --trace n       log one in every n operations, 100 by default, 0 for none
+ */
+public class NodeMain {
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+
+        if(args.length < 1) {
+            System.err.println("Usage: NodeMain id [--port p] [--seeds ids] [--host address] [--dir path]"
+                    + " [--durability d] [--sync-window n] [--compression c] [--quiet] [--trace n]");
+            System.exit(2);
+        }
+
+        final String id = args[0];
+        String address = DhtNode.addressOf(id);
+        int port = Integer.parseInt(address.substring(address.lastIndexOf(':') + 1));
+        List<String> seeds = Collections.singletonList("5554");
+        byte[] host = InetAddress.getLoopbackAddress().getAddress();
+        File dir = new File("node-" + id.replace(':', '-'));
+        LogStorage.Durability durability = LogStorage.Durability.SYNC;
+        int window = LogStorage.SYNC_WINDOW;
+        Compressor compressor = Compressor.FAST;
+        final boolean quiet;
+        boolean q = false;
+        int trace = DhtNode.TRACE_SAMPLE;
+        for(int i = 1; i < args.length; i++) {
+            if(args[i].equals("--port")) {
+                port = Integer.parseInt(args[++i]);
+            }
+            else if(args[i].equals("--seeds")) {
+                seeds = Arrays.asList(args[++i].split(","));
+            }
+            else if(args[i].equals("--host")) {
+                host = InetAddress.getByName(args[++i]).getAddress();
+            }
+            else if(args[i].equals("--dir")) {
+                dir = new File(args[++i]);
+            }
+            else if(args[i].equals("--durability")) {
+                durability = LogStorage.Durability.valueOf(args[++i].toUpperCase());
+            }
+            else if(args[i].equals("--sync-window")) {
+                window = Integer.parseInt(args[++i]);
+            }
+            else if(args[i].equals("--compression")) {
+                compressor = Compressor.named(args[++i]);
+            }
+            else if(args[i].equals("--quiet")) {
+                q = true;
+            }
+            else if(args[i].equals("--trace")) {
+                trace = Integer.parseInt(args[++i]);
+            }
+            else {
+                System.err.println("Unknown option " + args[i]);
+                System.exit(2);
+            }
+        }
+        quiet = q;
+
+        NodeLog log = new NodeLog() {
+            @Override
+            public void v(String message) {
+                if(!quiet) {
+                    System.out.println(id + " " + message);
+                }
+            }
+
+            @Override
+            public void e(String message) {
+                System.err.println(id + " " + message);
+            }
+        };
+
+        final DhtNode node = new DhtNode(id, port, host, seeds,
+                new LogStorage(dir, durability, window, LogStorage.SYNC_BYTES, compressor), log);
+        node.setTraceSample(trace);
+        node.setCompressor(compressor);
+        node.start();
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                try {
+                    node.close();
+                } catch (IOException e) {
+                    System.err.println(id + " Can't close node");
+                }
+            }
+        });
+        System.out.println("node " + id + " listening on " + port);
+
+        // The node's threads are daemons, so the main thread keeps the process alive
+        Thread.currentThread().join();
+    }
+}
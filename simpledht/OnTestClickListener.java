@@ -99,8 +99,10 @@ public class OnTestClickListener implements OnClickListener {
 
 		private boolean testInsert() {
 			try {
-				for (int i = 0; i < TEST_CNT; i++) {
-					mContentResolver.insert(mUri, mContentValues[i]);
+				int stored = mContentResolver.bulkInsert(mUri, mContentValues);
+				if (stored != TEST_CNT) {
+					Log.e(TAG, "Only " + stored + " of " + TEST_CNT + " inserted");
+					return false;
 				}
 			} catch (Exception e) {
 				Log.e(TAG, e.toString());
@@ -0,0 +1,363 @@
+package edu.buffalo.cse.cse486586.simpledht;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/***
+ * The PeerPool class keeps a single persistent TCP connection to every other
+ * node and multiplexes all traffic to that node over it. Requests are tagged
+ * with their request id and any number of them can be outstanding on the same
+ * connection at once. A reader thread per connection matches response frames
+ * to their requests by id, so responses may arrive in any order. At most
+ * MAX_IN_FLIGHT requests can be outstanding per connection. Further callers
+ * wait for one of them to finish, which keeps a slow peer from piling up work.
+ * Connections that sit idle for IDLE_TIMEOUT milliseconds are closed. Request
+ * values are compressed with the pool's compressor when it finds it worth it.
+ * A node is addressed as host:port, or by its port alone if it runs on the
+ * peer host the pool was created with.
+ */
+class PeerPool {
+
+    static final int IDLE_TIMEOUT = 30000;
+    static final int CONNECT_TIMEOUT = 2000;
+    static final int MAX_IN_FLIGHT = 64;
+
+    private final byte[] _host;
+    private final Map<String, Channel> _channels = new HashMap<String, Channel>();
+    private final ScheduledThreadPoolExecutor _timer = new ScheduledThreadPoolExecutor(1);
+    private final AtomicLong _sent = new AtomicLong(), _received = new AtomicLong();
+    private volatile Compressor _compressor = Compressor.NONE;
+
+    PeerPool(byte[] host) {
+        _host = host;
+        // Nearly every timeout is cancelled as its reply comes in, don't keep them queued until they expire
+        _timer.setRemoveOnCancelPolicy(true);
+    }
+
+    // Returns the open channel to the given address, connecting one first if there is none
+    Channel channel(String address) throws IOException {
+
+        synchronized (this) {
+            Channel channel = _channels.get(address);
+            if(channel != null && channel.isOpen()) {
+                return channel;
+            }
+        }
+
+        Socket socket = new Socket();
+        Channel channel;
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(IDLE_TIMEOUT);
+            socket.connect(resolve(address), CONNECT_TIMEOUT);
+            channel = new Channel(address, socket);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+
+        synchronized (this) {
+            // Another thread may have connected in the meantime
+            Channel current = _channels.get(address);
+            if(current != null && current.isOpen()) {
+                socket.close();
+                return current;
+            }
+            _channels.put(address, channel);
+        }
+        Thread reader = new Thread(channel, "peer " + address);
+        reader.setDaemon(true);
+        reader.start();
+        return channel;
+    }
+
+    // Turns a host:port address, or a port on the peer host, into a socket address
+    private InetSocketAddress resolve(String address) throws IOException {
+        int colon = address.lastIndexOf(':');
+        try {
+            if(colon < 0) {
+                return new InetSocketAddress(InetAddress.getByAddress(_host), Integer.parseInt(address));
+            }
+            return new InetSocketAddress(InetAddress.getByName(address.substring(0, colon)),
+                    Integer.parseInt(address.substring(colon + 1)));
+        } catch (NumberFormatException e) {
+            throw new IOException("Bad address " + address);
+        }
+    }
+
+    // Closes every connection and fails the requests still waiting on them
+    void close() {
+        List<Channel> channels;
+        synchronized (this) {
+            channels = new ArrayList<Channel>(_channels.values());
+            _channels.clear();
+        }
+        for(Channel channel : channels) {
+            channel.fail(new IOException("Pool closed"));
+        }
+        _timer.shutdownNow();
+    }
+
+    void setCompressor(Compressor compressor) {
+        _compressor = compressor;
+    }
+
+    // Returns the number of open connections
+    synchronized int size() {
+        return _channels.size();
+    }
+
+    // Returns the number of bytes written to all connections so far
+    long bytesSent() {
+        return _sent.get();
+    }
+
+    // Returns the number of bytes read from all connections so far
+    long bytesReceived() {
+        return _received.get();
+    }
+
+    private synchronized void remove(Channel channel) {
+        if(_channels.get(channel.address) == channel) {
+            _channels.remove(channel.address);
+        }
+    }
+
+    /***
+     * A single connection to a peer. Frames are written whole under a lock, so
+     * any number of threads can send on it, and read by the channel's own
+     * thread, which completes the pending request each response belongs to.
+     */
+    class Channel implements Runnable {
+
+        final String address;
+        private final Socket _socket;
+        private final DataInputStream _in;
+        private final DataOutputStream _out;
+        private final Semaphore _permits = new Semaphore(MAX_IN_FLIGHT);
+        private final Map<Long, Exchange> _pending = new HashMap<Long, Exchange>();
+        private boolean _closed;
+        private long _lastUsed;
+
+        Channel(String address, Socket socket) throws IOException {
+            this.address = address;
+            _socket = socket;
+            _in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            _out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            _lastUsed = System.currentTimeMillis();
+        }
+
+        synchronized boolean isOpen() {
+            return !_closed;
+        }
+
+        /* Writes a single frame that expects no response, closing the channel
+         * if the write fails. A frame too long to send fails on its own, as
+         * none of it was written.
+         */
+        void send(Message msg) throws IOException {
+            try {
+                int length;
+                synchronized (_out) {
+                    length = MessageCodec.write(_out, msg, _compressor);
+                }
+                _sent.addAndGet(length);
+            } catch (MessageCodec.FrameTooLongException e) {
+                throw e;
+            } catch (IOException e) {
+                fail(e);
+                throw e;
+            }
+            synchronized (this) {
+                _lastUsed = System.currentTimeMillis();
+            }
+        }
+
+        /* Sends a request and returns a promise of its last response frame,
+         * the one without FLAG_MORE. The key and value of every frame carrying
+         * a key are added to the given lists, if any, once the last frame has
+         * arrived in time, and never after a timeout or failure. Waits up to the timeout
+         * for a free slot if MAX_IN_FLIGHT requests are already outstanding,
+         * and fails the promise with a SocketTimeoutException if the response
+         * hasn't completed within the timeout after that.
+         */
+        Promise<Message> call(Message request, List<String> keys, List<byte[]> values, final int timeout) throws IOException {
+
+            try {
+                if(!_permits.tryAcquire(timeout, TimeUnit.MILLISECONDS)) {
+                    throw new SocketTimeoutException(MAX_IN_FLIGHT + " requests to " + address + " already in flight");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+
+            final Exchange exchange = new Exchange(request.id, keys, values);
+            synchronized (this) {
+                if(_closed) {
+                    _permits.release();
+                    throw new IOException("Connection to " + address + " closed");
+                }
+                _pending.put(exchange.id, exchange);
+                _lastUsed = System.currentTimeMillis();
+            }
+
+            final ScheduledFuture<?> timer = _timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    exchange.promise.completeExceptionally(
+                            new SocketTimeoutException("No response from " + address + " within " + timeout + " ms"));
+                }
+            }, timeout, TimeUnit.MILLISECONDS);
+            exchange.promise.whenComplete(new Promise.Callback<Message>() {
+                @Override
+                public void done(Message value, Throwable failure) {
+                    timer.cancel(false);
+                    finish(exchange);
+                }
+            });
+
+            try {
+                send(request);
+            } catch (IOException e) {
+                exchange.promise.completeExceptionally(e);
+            }
+            return exchange.promise;
+        }
+
+        // Reads response frames and hands each to the request it answers
+        @Override
+        public void run() {
+
+            Message frame = new Message();
+            try {
+                while(true) {
+                    try {
+                        MessageCodec.read(_in, frame);
+                        _received.addAndGet(frame.wireLength);
+                    } catch (SocketTimeoutException e) {
+                        synchronized (this) {
+                            if(_pending.isEmpty() && System.currentTimeMillis() - _lastUsed >= IDLE_TIMEOUT) {
+                                _closed = true;
+                                break;
+                            }
+                        }
+                        continue;
+                    }
+
+                    Exchange exchange;
+                    synchronized (this) {
+                        exchange = _pending.get(frame.id);
+                    }
+                    if(exchange == null) {
+                        // The request has already timed out
+                        continue;
+                    }
+                    exchange.add(frame);
+                    if(!frame.hasFlag(Message.FLAG_MORE)) {
+                        exchange.complete(frame);
+                        frame = new Message();
+                    }
+                }
+            } catch (IOException e) {
+                fail(e);
+                return;
+            }
+            fail(new IOException("Connection to " + address + " closed while idle"));
+        }
+
+        // Closes the channel and fails every request still waiting on it
+        void fail(IOException e) {
+            List<Exchange> pending;
+            synchronized (this) {
+                _closed = true;
+                pending = new ArrayList<Exchange>(_pending.values());
+            }
+            try {
+                _socket.close();
+            } catch (IOException e1) {
+                // Already closed
+            }
+            remove(this);
+            for(Exchange exchange : pending) {
+                exchange.promise.completeExceptionally(e);
+            }
+        }
+
+        // Forgets a completed request and frees its slot
+        private void finish(Exchange exchange) {
+            synchronized (this) {
+                if(_pending.remove(exchange.id) == null) {
+                    return;
+                }
+            }
+            _permits.release();
+        }
+    }
+
+    /***
+     * A request waiting for its response, along with the lists its rows go to.
+     * Rows are collected apart from those lists and only handed over when
+     * the response completes, as the caller takes the lists back as soon as
+     * the request times out or fails.
+     */
+    private static final class Exchange {
+
+        final long id;
+        final Promise<Message> promise = new Promise<Message>();
+        private final List<String> _keys;
+        private final List<byte[]> _values;
+        // Rows received so far, only touched by the reader of the channel
+        private final List<String> _rowKeys = new ArrayList<String>();
+        private final List<byte[]> _rowValues = new ArrayList<byte[]>();
+
+        Exchange(long id, List<String> keys, List<byte[]> values) {
+            this.id = id;
+            _keys = keys;
+            _values = values;
+        }
+
+        // Keeps the key and value of a frame that carries a key, if the caller asked for rows
+        void add(Message frame) {
+            if(_keys != null && frame.keyLength >= 0) {
+                _rowKeys.add(frame.key());
+                _rowValues.add(frame.bytes());
+            }
+        }
+
+        /* Hands the rows to the caller and completes the promise with the last
+         * frame, unless the promise has already timed out or failed. Both
+         * happen under the lock of the promise, which completing it otherwise
+         * takes as well, so rows never reach lists the caller has taken back.
+         */
+        void complete(Message frame) {
+            synchronized (promise) {
+                if(promise.isDone()) {
+                    return;
+                }
+                if(_keys != null) {
+                    _keys.addAll(_rowKeys);
+                    _values.addAll(_rowValues);
+                }
+                promise.complete(frame);
+            }
+        }
+    }
+}
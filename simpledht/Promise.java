@@ -0,0 +1,117 @@
+package edu.buffalo.cse.cse486586.simpledht;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/***
+ * The Promise class is a result that is filled in later by whichever thread
+ * finishes the work, in the style of CompletableFuture (which the provider's
+ * Android target does not have). A promise completes once, with a value or a
+ * failure. Callers can block on it with a timeout or register a callback that
+ * runs on the completing thread, or right away if it has already completed.
+ */
+class Promise<T> implements Future<T> {
+
+    /***
+     * Called once a promise completes, with either its value or its failure.
+     */
+    interface Callback<T> {
+        void done(T value, Throwable failure);
+    }
+
+    private T _value;
+    private Throwable _failure;
+    private boolean _done, _cancelled;
+    private List<Callback<T>> _callbacks = new ArrayList<Callback<T>>();
+
+    // Completes the promise with a value, returning false if it was already complete
+    boolean complete(T value) {
+        return finish(value, null, false);
+    }
+
+    // Completes the promise with a failure, returning false if it was already complete
+    boolean completeExceptionally(Throwable failure) {
+        return finish(null, failure, false);
+    }
+
+    void whenComplete(Callback<T> callback) {
+        synchronized (this) {
+            if(!_done) {
+                _callbacks.add(callback);
+                return;
+            }
+        }
+        callback.done(_value, _failure);
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return finish(null, new CancellationException(), true);
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return _cancelled;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return _done;
+    }
+
+    @Override
+    public synchronized T get() throws InterruptedException, ExecutionException {
+        while(!_done) {
+            wait();
+        }
+        return result();
+    }
+
+    @Override
+    public synchronized T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while(!_done) {
+            long remaining = deadline - System.nanoTime();
+            if(remaining <= 0) {
+                throw new TimeoutException();
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return result();
+    }
+
+    private T result() throws ExecutionException {
+        if(_cancelled) {
+            throw new CancellationException();
+        }
+        if(_failure != null) {
+            throw new ExecutionException(_failure);
+        }
+        return _value;
+    }
+
+    private boolean finish(T value, Throwable failure, boolean cancelled) {
+        List<Callback<T>> callbacks;
+        synchronized (this) {
+            if(_done) {
+                return false;
+            }
+            _value = value;
+            _failure = failure;
+            _cancelled = cancelled;
+            _done = true;
+            callbacks = _callbacks;
+            _callbacks = null;
+            notifyAll();
+        }
+        for(Callback<T> callback : callbacks) {
+            callback.done(value, failure);
+        }
+        return true;
+    }
+}
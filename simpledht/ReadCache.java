@@ -0,0 +1,323 @@
+package edu.buffalo.cse.cse486586.simpledht;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/***
+ * The ReadCache class is a size-bounded cache of locally owned values that sits
+ * in front of Storage.get(). Two eviction policies are available: plain LRU, and
+ * W-TinyLFU, which keeps a small LRU window for new keys and only admits a key
+ * evicted from the window into the main area if it has been read more often than
+ * the entry it would replace. Values are the buffers the store returned and are
+ * shared by every reader, so they are only ever read through duplicates. Values
+ * of LogStorage.MAP_THRESHOLD bytes or more are never cached: the store already
+ * serves those from its mapped segments without copying, and holding them would
+ * let a few thousand large values pin gigabytes of heap.
+ *
+ * Every write or remove must invalidate its key. A read that misses takes a stamp
+ * before going to storage and passes it to fill(), which drops the value if any
+ * invalidation happened in between, so a slow read can't put back a value that a
+ * concurrent write already replaced.
+ */
+abstract class ReadCache {
+
+    enum Policy { LRU, TINY_LFU }
+
+    protected final int _capacity;
+    private long _hits, _misses, _evictions, _invalidations;
+
+    protected ReadCache(int capacity) {
+        _capacity = Math.max(capacity, 1);
+    }
+
+    static ReadCache create(Policy policy, int capacity) {
+        if(policy == Policy.LRU) {
+            return new Lru(capacity);
+        }
+        return new TinyLfu(capacity);
+    }
+
+    // Returns the cached value of the key, or null on a miss
+    synchronized ByteBuffer get(String key) {
+        ByteBuffer value = lookup(key);
+        if(value == null) {
+            _misses++;
+        }
+        else {
+            _hits++;
+        }
+        return value;
+    }
+
+    // Returns a stamp to pass to fill() once the value has been read from storage
+    synchronized long stamp() {
+        return _invalidations;
+    }
+
+    /* Caches a value read from storage unless the cache was invalidated since
+     * the stamp or the value is too large to cache, see the class doc.
+     */
+    synchronized void fill(String key, ByteBuffer value, long stamp) {
+        if(stamp == _invalidations && value.remaining() < LogStorage.MAP_THRESHOLD) {
+            insert(key, value);
+        }
+    }
+
+    synchronized void invalidate(String key) {
+        _invalidations++;
+        evict(key);
+    }
+
+    synchronized void clear() {
+        _invalidations++;
+        evictAll();
+    }
+
+    synchronized long hits() {
+        return _hits;
+    }
+
+    synchronized long misses() {
+        return _misses;
+    }
+
+    synchronized long evictions() {
+        return _evictions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "hits " + _hits + ", misses " + _misses + ", evictions " + _evictions;
+    }
+
+    protected void evicted() {
+        _evictions++;
+    }
+
+    protected abstract ByteBuffer lookup(String key);
+
+    protected abstract void insert(String key, ByteBuffer value);
+
+    protected abstract void evict(String key);
+
+    protected abstract void evictAll();
+
+    /***
+     * Least recently used eviction over a single access-ordered map.
+     */
+    private static final class Lru extends ReadCache {
+
+        private final LinkedHashMap<String, ByteBuffer> _map;
+
+        Lru(int capacity) {
+            super(capacity);
+            _map = new LinkedHashMap<String, ByteBuffer>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, ByteBuffer> eldest) {
+                    if(size() > _capacity) {
+                        evicted();
+                        return true;
+                    }
+                    return false;
+                }
+            };
+        }
+
+        @Override
+        protected ByteBuffer lookup(String key) {
+            return _map.get(key);
+        }
+
+        @Override
+        protected void insert(String key, ByteBuffer value) {
+            _map.put(key, value);
+        }
+
+        @Override
+        protected void evict(String key) {
+            _map.remove(key);
+        }
+
+        @Override
+        protected void evictAll() {
+            _map.clear();
+        }
+    }
+
+    /***
+     * W-TinyLFU eviction. One percent of the capacity is an LRU window that every
+     * new key enters. The rest is a segmented LRU split into a probation and a
+     * protected area; a probation hit promotes the key to protected. A key pushed
+     * out of the window competes against the oldest probation entry and the one
+     * with the lower estimated read frequency is evicted.
+     */
+    private static final class TinyLfu extends ReadCache {
+
+        private final int _windowMax, _protectedMax;
+        private final LinkedHashMap<String, ByteBuffer> _window = new LinkedHashMap<String, ByteBuffer>(16, 0.75f, true);
+        private final LinkedHashMap<String, ByteBuffer> _probation = new LinkedHashMap<String, ByteBuffer>(16, 0.75f, true);
+        private final LinkedHashMap<String, ByteBuffer> _protected = new LinkedHashMap<String, ByteBuffer>(16, 0.75f, true);
+        private final FrequencySketch _sketch;
+
+        TinyLfu(int capacity) {
+            super(capacity);
+            _windowMax = Math.max(1, _capacity / 100);
+            _protectedMax = (_capacity - _windowMax) * 4 / 5;
+            _sketch = new FrequencySketch(_capacity);
+        }
+
+        @Override
+        protected ByteBuffer lookup(String key) {
+            _sketch.increment(key);
+
+            ByteBuffer value = _window.get(key);
+            if(value != null) {
+                return value;
+            }
+            value = _protected.get(key);
+            if(value != null) {
+                return value;
+            }
+            value = _probation.remove(key);
+            if(value != null) {
+                _protected.put(key, value);
+                if(_protected.size() > _protectedMax) {
+                    Map.Entry<String, ByteBuffer> demoted = eldest(_protected);
+                    _protected.remove(demoted.getKey());
+                    _probation.put(demoted.getKey(), demoted.getValue());
+                }
+            }
+            return value;
+        }
+
+        @Override
+        protected void insert(String key, ByteBuffer value) {
+            if(_window.containsKey(key)) {
+                _window.put(key, value);
+                return;
+            }
+            if(_protected.containsKey(key)) {
+                _protected.put(key, value);
+                return;
+            }
+            if(_probation.containsKey(key)) {
+                _probation.put(key, value);
+                return;
+            }
+
+            _window.put(key, value);
+            if(_window.size() <= _windowMax) {
+                return;
+            }
+
+            Map.Entry<String, ByteBuffer> candidate = eldest(_window);
+            _window.remove(candidate.getKey());
+            if(_window.size() + _probation.size() + _protected.size() < _capacity) {
+                _probation.put(candidate.getKey(), candidate.getValue());
+                return;
+            }
+
+            LinkedHashMap<String, ByteBuffer> main = _probation.isEmpty() ? _protected : _probation;
+            Map.Entry<String, ByteBuffer> victim = eldest(main);
+            if(_sketch.frequency(candidate.getKey()) > _sketch.frequency(victim.getKey())) {
+                main.remove(victim.getKey());
+                _probation.put(candidate.getKey(), candidate.getValue());
+            }
+            evicted();
+        }
+
+        @Override
+        protected void evict(String key) {
+            if(_window.remove(key) == null && _probation.remove(key) == null) {
+                _protected.remove(key);
+            }
+        }
+
+        @Override
+        protected void evictAll() {
+            _window.clear();
+            _probation.clear();
+            _protected.clear();
+        }
+
+        private static Map.Entry<String, ByteBuffer> eldest(LinkedHashMap<String, ByteBuffer> map) {
+            Iterator<Map.Entry<String, ByteBuffer>> it = map.entrySet().iterator();
+            return it.next();
+        }
+    }
+
+    /***
+     * A count-min sketch of four rows of 4-bit counters that estimates how often
+     * each key was read. All counters are halved once the number of increments
+     * reaches ten times the table width, so the estimate follows recent reads.
+     */
+    private static final class FrequencySketch {
+
+        private static final int[] SEEDS = {0x97cb3127, 0xb3c8b1b5, 0xc2b2ae35, 0x27d4eb2f};
+
+        private final long[] _table;
+        private final int _mask;
+        private final int _sampleSize;
+        private int _additions;
+
+        FrequencySketch(int capacity) {
+            int width = Integer.highestOneBit(Math.max(capacity, 16) * 2 - 1);
+            _table = new long[width];
+            _mask = width - 1;
+            _sampleSize = 10 * width;
+        }
+
+        int frequency(String key) {
+            int hash = spread(key.hashCode());
+            int frequency = Integer.MAX_VALUE;
+            for(int i = 0; i < 4; i++) {
+                frequency = Math.min(frequency, count(hash, i));
+            }
+            return frequency;
+        }
+
+        void increment(String key) {
+            int hash = spread(key.hashCode());
+            boolean added = false;
+            for(int i = 0; i < 4; i++) {
+                int index = index(hash, i);
+                int shift = shift(hash, i);
+                if(((_table[index] >>> shift) & 0xfL) < 15) {
+                    _table[index] += 1L << shift;
+                    added = true;
+                }
+            }
+            if(added && ++_additions == _sampleSize) {
+                reset();
+            }
+        }
+
+        private int count(int hash, int row) {
+            return (int) ((_table[index(hash, row)] >>> shift(hash, row)) & 0xfL);
+        }
+
+        // Each row picks a word of the table and one of the 16 counters packed into it
+        private int index(int hash, int row) {
+            int h = (hash ^ SEEDS[row]) * SEEDS[row];
+            return (h ^ (h >>> 16)) & _mask;
+        }
+
+        private int shift(int hash, int row) {
+            return (((hash >>> (row * 8)) & 3) + (row << 2)) << 2;
+        }
+
+        private void reset() {
+            for(int i = 0; i < _table.length; i++) {
+                _table[i] = (_table[i] >>> 1) & 0x7777777777777777L;
+            }
+            _additions /= 2;
+        }
+
+        private static int spread(int x) {
+            x = ((x >>> 16) ^ x) * 0x45d9f3b;
+            return (x >>> 16) ^ x;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package edu.buffalo.cse.cse486586.simpledht;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/***
+ * The RingCursor class is the result of a "*" query. Rows are not collected up
+ * front. The first call to getCount() asks every node how many keys it holds.
+ * After that, the rows of a node are fetched one page at a time as the cursor
+ * moves onto them, and only the current page is held in memory. The
+ * continuation token of every page seen is kept, so moving back to an
+ * earlier page fetches it again directly.
+ *
+ * The ring is not frozen while the cursor is read. Keys inserted after the
+ * count are left out, and rows of keys removed since then read as null.
+ * Values are carried as raw bytes, see ValueCursor.
+ */
+class RingCursor extends ValueCursor {
+
+    /***
+     * Where a RingCursor gets its counts and pages from.
+     */
+    interface Source {
+
+        /* Adds every reachable node, the local node first, along with the
+         * number of keys it holds.
+         */
+        void count(List<String> nodes, List<Integer> counts);
+
+        /* Reads the page of a node's keys that follows the given token, or the
+         * first page if the token is null, in ring order. Returns the token of
+         * the next page, or null once the node has no more keys.
+         */
+        String page(String node, String token, List<String> keys, List<byte[]> values);
+    }
+
+    private final Source _source;
+    private final int _pageSize;
+    private final List<String> _nodes = new ArrayList<String>();
+    private final List<Integer> _counts = new ArrayList<Integer>();
+    private final List<List<String>> _tokens = new ArrayList<List<String>>();
+    private int[] _starts;
+    private int _count = -1;
+    private int _node = -1, _page = -1;
+
+    RingCursor(Source source, int pageSize) {
+        _source = source;
+        _pageSize = pageSize;
+    }
+
+    @Override
+    public int getCount() {
+        if(_count < 0) {
+            _source.count(_nodes, _counts);
+            _starts = new int[_nodes.size()];
+            int total = 0;
+            for(int i = 0; i < _nodes.size(); i++) {
+                _starts[i] = total;
+                total += _counts.get(i);
+                List<String> tokens = new ArrayList<String>();
+                tokens.add(null);
+                _tokens.add(tokens);
+            }
+            _count = total;
+        }
+        return _count;
+    }
+
+    @Override
+    public boolean onMove(int oldPosition, int newPosition) {
+        load(newPosition);
+        return true;
+    }
+
+    /* Makes the page holding the given position current. Pages of a node are
+     * reached through the token of the page before them, so pages past the
+     * last one seen are fetched in turn until the wanted one is reached.
+     */
+    private void load(int position) {
+
+        int node = _nodes.size() - 1;
+        while(node > 0 && (_starts[node] > position || _counts.get(node) == 0)) {
+            node--;
+        }
+        int page = (position - _starts[node]) / _pageSize;
+        if(node == _node && page == _page) {
+            return;
+        }
+
+        List<String> tokens = _tokens.get(node);
+        int next = Math.min(page, tokens.size() - 1);
+        while(true) {
+            _keys.clear();
+            _values.clear();
+            String token = tokens.get(next);
+            if(next > 0 && token == null) {
+                // The node ran out of keys before this page
+                break;
+            }
+            String following = _source.page(_nodes.get(node), token, _keys, _values);
+            if(next + 1 == tokens.size()) {
+                tokens.add(following);
+            }
+            if(next == page) {
+                break;
+            }
+            next++;
+        }
+
+        _node = node;
+        _page = page;
+        _first = _starts[node] + page * _pageSize;
+    }
+}
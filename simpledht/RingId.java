@@ -0,0 +1,133 @@
+package edu.buffalo.cse.cse486586.simpledht;
+
+import java.nio.charset.Charset;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/***
+ * The RingId class is a position on the 160-bit Chord ring, the SHA-1 hash of
+ * a key or node id. It is stored as two longs and an int, most significant part
+ * first, and compared as an unsigned number without allocating. Hashing uses a
+ * MessageDigest kept per thread.
+ */
+final class RingId implements Comparable<RingId> {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final ThreadLocal<MessageDigest> SHA1 = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-1");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("SHA-1 not available", e);
+            }
+        }
+    };
+    private static final ThreadLocal<byte[]> DIGEST = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[20];
+        }
+    };
+
+    final long hi, mid;
+    final int lo;
+
+    RingId(long hi, long mid, int lo) {
+        this.hi = hi;
+        this.mid = mid;
+        this.lo = lo;
+    }
+
+    // Used to generate the SHA-1 position of a given string
+    static RingId of(String input) {
+        return of(input.getBytes(UTF8));
+    }
+
+    static RingId of(byte[] input) {
+        MessageDigest sha1 = SHA1.get();
+        byte[] digest = DIGEST.get();
+        try {
+            sha1.update(input);
+            sha1.digest(digest, 0, digest.length);
+        } catch (DigestException e) {
+            throw new IllegalStateException(e);
+        }
+        return new RingId(getLong(digest, 0), getLong(digest, 8), (int) (getLong(digest, 12) & 0xffffffffL));
+    }
+
+    // Reads a position back from the hex string toString() produces
+    static RingId parse(String hex) {
+        if(hex.length() != 40) {
+            throw new IllegalArgumentException("Not a ring position: " + hex);
+        }
+        return new RingId(parseHex(hex, 0, 16), parseHex(hex, 16, 32), (int) parseHex(hex, 32, 40));
+    }
+
+    @Override
+    public int compareTo(RingId o) {
+        int c = compareUnsigned(hi, o.hi);
+        if(c != 0) {
+            return c;
+        }
+        c = compareUnsigned(mid, o.mid);
+        if(c != 0) {
+            return c;
+        }
+        return compareUnsigned(lo & 0xffffffffL, o.lo & 0xffffffffL);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if(!(o instanceof RingId)) {
+            return false;
+        }
+        RingId other = (RingId) o;
+        return hi == other.hi && mid == other.mid && lo == other.lo;
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (hi ^ (hi >>> 32));
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%016x%016x%08x", hi, mid, lo);
+    }
+
+    // Checks whether x lies strictly between a and b going clockwise
+    static boolean inOpen(RingId x, RingId a, RingId b) {
+        if(a.compareTo(b) < 0) {
+            return (x.compareTo(a) > 0) && (x.compareTo(b) < 0);
+        }
+        return (x.compareTo(a) > 0) || (x.compareTo(b) < 0);
+    }
+
+    private static int compareUnsigned(long a, long b) {
+        a += Long.MIN_VALUE;
+        b += Long.MIN_VALUE;
+        return (a < b) ? -1 : ((a == b) ? 0 : 1);
+    }
+
+    private static long parseHex(String hex, int start, int end) {
+        long value = 0;
+        for(int i = start; i < end; i++) {
+            int digit = Character.digit(hex.charAt(i), 16);
+            if(digit < 0) {
+                throw new IllegalArgumentException("Not a ring position: " + hex);
+            }
+            value = (value << 4) | digit;
+        }
+        return value;
+    }
+
+    private static long getLong(byte[] b, int offset) {
+        long value = 0;
+        for(int i = 0; i < 8; i++) {
+            value = (value << 8) | (b[offset + i] & 0xffL);
+        }
+        return value;
+    }
+}
@@ -1,20 +1,11 @@
 package edu.buffalo.cse.cse486586.simpledht;
 
-import java.io.BufferedReader;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.net.InetAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.UnknownHostException;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.util.Formatter;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import android.content.ContentProvider;
 import android.content.ContentValues;
@@ -22,7 +13,6 @@ import android.content.Context;
 import android.database.Cursor;
 import android.database.MatrixCursor;
 import android.net.Uri;
-import android.os.AsyncTask;
 import android.telephony.TelephonyManager;
 import android.util.Log;
 
@@ -30,91 +20,50 @@ import android.util.Log;
  * The SimpleDhtProvider class implements a simple Distributed Hash Table
  * based on Chord. The class extends the Android ContentProvider for data
  * manipulation implementing the "insert", "delete", and "query" functions.
+ * The ring itself is run by a DhtNode, the provider only turns its calls
+ * into node calls and the results into cursors.
  *
  * @author: caevans
  */
 public class SimpleDhtProvider extends ContentProvider {
 
     static final String TAG = SimpleDhtProvider.class.getSimpleName();
-    static final String[] PORTS = {"11108", "11112", "11116", "11120", "11124"};
+    // Any running one of these admits the others, the ring itself isn't limited to them
+    static final String[] SEEDS = {"5554", "5556", "5558", "5560", "5562"};
     static final int SERVER_PORT = 10000;
-    private String _successor, _predecessor, _local;
-    private String _hashS, _hashP, _hashL;
-    private String _portS, _portP, _portL;
-    private Uri _uri;
+    static final boolean LOG_STORAGE = true;
+    // BATCHED only pays off where an fsync costs more than the window, which it didn't where measured
+    static final LogStorage.Durability DURABILITY = LogStorage.Durability.SYNC;
+    static final Compressor COMPRESSION = Compressor.FAST;
+    private DhtNode _node;
+
+    // Sends the log of the node to the Android log
+    private static final NodeLog LOG = new NodeLog() {
+        @Override
+        public void v(String message) {
+            Log.v(TAG, message);
+        }
+
+        @Override
+        public void e(String message) {
+            Log.e(TAG, message);
+        }
+    };
 
     /* The delete method checks for a given key and deletes the entry.
      * Using the provided key, a SHA-1 hash is created and checked against
      * the hash of the AVD port (5554 ... 5562) to see if the entry resides
-     * on the current device. If so, it deletes it. If not, the hash is compared
-     * to hashes of the successor and predecessor nodes of the ring. A message is
-     * then sent accordingly to whichever node to call delete on the same key on
-     * that device. The special characters '@' and '*' will delete all entries
-     * on a given node and all entries across the entire ring, respectively.
+     * on the current device. If so, it deletes it. If not, the owner of the hash
+     * is looked up among the virtual positions of every node on the ring and a
+     * message is sent to it to call delete on the same key on that device. The
+     * special characters '@' and '*' will delete all entries on a given node
+     * and all entries across the entire ring, respectively. A '*' delete
+     * clears every node at once and returns the number of nodes that were
+     * cleared.
      */
     @Override
     public int delete(Uri uri, String selection, String[] selectionArgs) {
-
-        String key = selection;
-
-        if(key.equals("@")) {
-            return remove(key);
-        }
-        if(key.equals("*")) {
-            if(_successor == null) {
-                return remove(key);
-            }
-            else {
-                new ClientTask().executeOnExecutor(AsyncTask.SERIAL_EXECUTOR, "delete", _portL, _portP, "*", "---");
-                return 1;
-            }
-        }
-
-        String hash = null;
-        try {
-            hash = genHash(key);
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
-        }
-
-        int comp_local = hash.compareTo(_hashL);
-        if(comp_local < 0) {
-            if(_predecessor == null) {
-               return remove(key);
-            }
-            else {
-                int comp_pred = hash.compareTo(_hashP);
-                if(comp_pred > 0) {
-                    return remove(key);
-                }
-                else {
-                    int comp_nodes = _hashP.compareTo(_hashL);
-                    if(comp_nodes < 0) {
-                        new ClientTask().executeOnExecutor(AsyncTask.SERIAL_EXECUTOR, "delete", _portL, _portP, key, "---");
-                        return 2;
-                    }
-                    else {
-                        return remove(key);
-                    }
-                }
-            }
-        }
-        else {
-            if(_successor == null) {
-                return remove(key);
-            }
-            else {
-                int comp_nodes = _hashP.compareTo(_hashL);
-                int comp_pred  = hash.compareTo(_hashP);
-                if((comp_nodes > 0) && (comp_pred > 0)) {
-                    return remove(key);
-                }
-                else {
-                    new ClientTask().executeOnExecutor(AsyncTask.SERIAL_EXECUTOR, "delete", _portL, _portS, key, "---");
-                    return 2;
-                }
-            }
-        }
+        return _node.delete(selection);
     }
 
     // Method not defined
@@ -125,651 +74,158 @@ public class SimpleDhtProvider extends ContentProvider {
 
     /* The insert method functions similarly to delete() however checks to see if
      * a given key should be stored on the current device. If not, a message is sent
-     * forward or back on the ring to insert the key.
+     * forward or back on the ring to insert the key. The value may be a string,
+     * stored as UTF-8, or a byte array, stored as is. A value over
+     * MessageCodec.MAX_VALUE bytes is rejected with an IllegalArgumentException.
      */
     @Override
     public Uri insert(Uri uri, ContentValues values) {
+        _node.insert(values.getAsString("key"), value(values));
+        return uri;
+    }
 
-        String key = values.getAsString("key");
-        String value = values.getAsString("value");
-
-        String hash = null;
-        try {
-            hash = genHash(key);
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
+    // Returns the bytes of the value of an insert
+    private static byte[] value(ContentValues values) {
+        Object value = values.get("value");
+        if(value == null || value instanceof byte[]) {
+            return (byte[]) value;
         }
+        return value.toString().getBytes(Message.UTF8);
+    }
 
-        int comp_local = hash.compareTo(_hashL);
-        if(comp_local < 0) {
-            if(_predecessor == null) {
-                store(key, value);
-            }
-            else {
-                int comp_pred = hash.compareTo(_hashP);
-                if(comp_pred > 0) {
-                    store(key, value);
-                }
-                else {
-                    int comp_nodes = _hashP.compareTo(_hashL);
-                    if(comp_nodes < 0) {
-                        new ClientTask().executeOnExecutor(AsyncTask.SERIAL_EXECUTOR, "insert", _portL, _portP, key, value);
-                    }
-                    else {
-                        store(key, value);
-                    }
-                }
-            }
-        }
-        else {
-            if(_successor == null) {
-                store(key, value);
-            }
-            else {
-                int comp_nodes = _hashP.compareTo(_hashL);
-                int comp_pred  = hash.compareTo(_hashP);
-                if((comp_nodes > 0) && (comp_pred > 0)) {
-                    store(key, value);
-                }
-                else {
-                    new ClientTask().executeOnExecutor(AsyncTask.SERIAL_EXECUTOR, "insert", _portL, _portS, key, value);
-                }
-            }
-        }
+    /* The bulkInsert method inserts many keys at once, one batch message per
+     * destination node, and waits for every batch to be acknowledged. Returns
+     * the number of stored keys. Values are limited as in insert(), and none
+     * of the keys are stored if one is over the limit.
+     */
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
 
-        return uri;
+        List<String> keys = new ArrayList<String>(values.length);
+        List<byte[]> vals = new ArrayList<byte[]>(values.length);
+        for(ContentValues cv : values) {
+            keys.add(cv.getAsString("key"));
+            vals.add(value(cv));
+        }
+        return _node.insertAll(keys, vals);
     }
 
-    /* onCreate is called initially as the ContentProvider is created. All private
-     * variables are initialized accordingly and a join message is sent to to AVD
-     * 5554 (if not the current AVD) to see if a network of rings already exists
+    /* onCreate is called initially as the ContentProvider is created. The node
+     * of this AVD is created on its local store and started, which sends a join
+     * message to one of the seed AVDs to see if a network of rings already
+     * exists
      */
     @Override
     public boolean onCreate() {
 
         TelephonyManager tel = (TelephonyManager) getContext().getSystemService(Context.TELEPHONY_SERVICE);
         String portStr = tel.getLine1Number().substring(tel.getLine1Number().length() - 4);
-        _portL = String.valueOf((Integer.parseInt(portStr) * 2));
-        _local = portStr;
+
+        Storage storage;
         try {
-            _hashL = genHash(_local);
-        } catch (NoSuchAlgorithmException e) {
-            Log.e(TAG, "Local Hash Error");
+            storage = openStorage(getContext());
+        } catch (IOException e) {
+            Log.e(TAG, "Can't open storage");
+            return false;
         }
-        Log.v(TAG, "node " + _local + " hash is " + _hashL);
-        _uri = build();
-        _successor = null;
-        _predecessor = null;
-        _hashP = null;
-        _hashS = null;
 
+        _node = new DhtNode(portStr, SERVER_PORT, new byte[]{10, 0, 2, 2}, Arrays.asList(SEEDS), storage, LOG);
+        _node.setCompressor(COMPRESSION);
         try {
-            ServerSocket serverSocket = new ServerSocket(SERVER_PORT);
-            new ServerTask().executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, serverSocket);
+            _node.start();
         } catch (IOException e) {
             Log.e(TAG, "Can't create a ServerSocket");
-            return true;
-        }
-
-        if(!_local.equals("5554")) {
-            new ClientTask().executeOnExecutor(AsyncTask.SERIAL_EXECUTOR, "join", _portL, PORTS[0], _local, "---");
         }
 
         return true;
     }
 
+    /* Opens the local store. The log-structured store is the default, the
+     * file per key layout can be switched back to with LOG_STORAGE. Writes to
+     * the log are committed with the given DURABILITY and values compressed
+     * with COMPRESSION, which the node uses on the wire as well.
+     */
+    static Storage openStorage(Context context) throws IOException {
+        if(LOG_STORAGE) {
+            return new LogStorage(new File(context.getFilesDir(), "log"), DURABILITY,
+                    LogStorage.SYNC_WINDOW, LogStorage.SYNC_BYTES, COMPRESSION);
+        }
+        return new FileStorage(context.getFilesDir());
+    }
+
     /* The query method operates just as delete() and insert() for key checks
      * but unlike those two must wait for a response (if the query is sent to
      * another AVD) for a given key. The special characters '@' and '*' will
      * return all entries for a given node and all entries across the entire
-     * ring, respectively.
+     * ring, respectively. A '*' query returns a RingCursor that fetches the
+     * entries of each node in pages of PAGE_SIZE as it is read. The consistency
+     * level of a single key read is READ_CONSISTENCY unless one of "ONE",
+     * "QUORUM" or "ALL" is passed as the first selection argument. The
+     * selection "#metrics" returns the metrics of this node as rows of names
+     * and values, or those of the node whose id is the first selection
+     * argument. Values are returned as they were stored, see ValueCursor.
      */
     @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
             String sortOrder) {
 
         String key = selection;
-        String hash = null;
 
         if(key.equals("@")) {
-            return get(key);
+            List<String> keys = new ArrayList<String>();
+            List<byte[]> values = new ArrayList<byte[]>();
+            _node.local(keys, values);
+            return new ValueCursor(keys, values);
         }
         if(key.equals("*")) {
-            if(_successor == null) {
-                return get(key);
-            }
-            else {
-                if(_successor.equals(sortOrder)) {
-                    return get(key);
-                }
-                else {
-                    if(sortOrder == null) {
-                        sortOrder = _local;
-                    }
-                    Socket socket = send(null, "query", _portL, _portS, key, sortOrder);
-
-                    while(true) {
-                        try {
-                            DataInputStream receive = new DataInputStream(socket.getInputStream());
-                            String[] reception = receive.readUTF().split(":::");
-                            String op = reception[0];
-                            String kee = reception[3];
-                            String value = reception[4];
-
-                            if (kee.equals("...")) {
-                                return get(key);
-                            } else if (op.equals("query_resp")) {
-                                String[] columns = {"key", "value"};
-                                MatrixCursor cursor = new MatrixCursor(columns);
-                                String[] kee2 = kee.split("~~~");
-                                String[] value2 = value.split("~~~");
-                                for (int i = 0; i < kee2.length; i++) {
-                                    String[] row = {kee2[i], value2[i]};
-                                    cursor.addRow(row);
-                                }
-                                Cursor cursor1 = get(key);
-                                if (cursor1.moveToFirst()) {
-                                    do {
-                                        String kee3 = cursor1.getString(cursor1.getColumnIndex("key"));
-                                        String value3 = cursor1.getString(cursor1.getColumnIndex("value"));
-                                        String[] row = {kee3, value3};
-                                        cursor.addRow(row);
-                                    } while (cursor1.moveToNext());
-                                }
-                                return cursor;
-                            }
-
-                        } catch (IOException e) {
-                            Log.e(TAG, "Read exception");
-                        }
-                    }
-                }
-            }
-        }
-
-        try {
-            hash = genHash(key);
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
-        }
-
-        int comp_local = hash.compareTo(_hashL);
-        if(comp_local < 0) {
-            if(_predecessor == null) {
-                return get(key);
-            }
-            else {
-                int comp_pred = hash.compareTo(_hashP);
-                if(comp_pred > 0) {
-                    return get(key);
-                }
-                else {
-                    int comp_nodes = _hashP.compareTo(_hashL);
-                    if(comp_nodes < 0) {
-                        Socket socket = send(null, "query", _portL, _portP, key, "---");
-
-                        while(true) {
-                            try {
-                                DataInputStream receive = new DataInputStream(socket.getInputStream());
-                                String[] reception = receive.readUTF().split(":::");
-                                String op = reception[0];
-                                String value = reception[4];
-
-                                if (key.equals("...")) {
-                                    return null;
-                                }
-
-                                if (op.equals("query_resp")) {
-                                    String[] columns = {"key", "value"};
-                                    MatrixCursor cursor = new MatrixCursor(columns);
-                                    String[] row = {key, value};
-                                    cursor.addRow(row);
-                                    return cursor;
-                                }
-
-                            } catch (IOException e) {
-                                Log.e(TAG, "Read exception");
-                            }
-                        }
-
-                    }
-                    else {
-                        return get(key);
-                    }
-                }
-            }
-        }
-        else {
-            if(_successor == null) {
-                return get(key);
-            }
-            else {
-                int comp_nodes = _hashP.compareTo(_hashL);
-                int comp_pred  = hash.compareTo(_hashP);
-                if((comp_nodes > 0) && (comp_pred > 0)) {
-                    return get(key);
-                }
-                else {
-                    Socket socket = send(null, "query", _portL, _portS, key, "---");
-
-                    while (true) {
-                        try {
-                            DataInputStream receive = new DataInputStream(socket.getInputStream());
-                            String[] reception = receive.readUTF().split(":::");
-                            String op = reception[0];
-                            String value = reception[4];
-
-                            if (key.equals("...")) {
-                                return null;
-                            }
-
-                            if (op.equals("query_resp")) {
-                                String[] columns = {"key", "value"};
-                                MatrixCursor cursor = new MatrixCursor(columns);
-                                String[] row = {key, value};
-                                cursor.addRow(row);
-                                return cursor;
-                            }
-
-                        } catch (IOException e) {
-                            Log.e(TAG, "Read exception");
-                        }
-
-                        return null;
-                    }
-                }
-            }
-        }
-    }
-
-    // Method not defined
-    @Override
-    public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
-        return 0;
-    }
-
-    /* Method to send a string from one port to another via a TCP socket. A socket
-     * is created if one is not provided as a parameter. Every other parameter is
-     * combined to a single string and sent via TCP using UTF-8 encoding. The used
-     * socket is returned
-     */
-    private Socket send(Socket socket, String... all) {
-
-        String op = all[0];
-        String localPort = all[1];
-        String remotePort = all[2];
-        String key = all[3];
-        String value = all[4];
-
-        try {
-            if (socket == null) {
-                socket = new Socket(InetAddress.getByAddress(new byte[]{10, 0, 2, 2}),
-                        Integer.parseInt(remotePort));
-            }
-
-            String msgToSend = op + ":::" + localPort + ":::" + remotePort + ":::" + key + ":::" + value;
-            DataOutputStream send = new DataOutputStream(socket.getOutputStream());
-            send.writeUTF(msgToSend);
-            send.flush();
-            //socket.close();
-
-        } catch (UnknownHostException e) {
-            Log.e(TAG, "ClientTask UnknownHostException");
-        } catch (IOException e) {
-            Log.e(TAG, "ClientTask socket IOException");
-        }
-
-        return socket;
-    }
-
-    /* The store method is a helper function for insert(). Given a key and
-     * value, an entry is made and stored on the device.
-     */
-    private void store(String key, String value) {
-
-        getContext().deleteFile(key);
-
-        FileOutputStream outputStream;
-        try {
-            outputStream = getContext().openFileOutput(key, Context.MODE_PRIVATE);
-            outputStream.write(value.getBytes());
-            Log.v(TAG, "storing " + key + " - " + value + " on " + _local);
-            outputStream.close();
-        } catch (Exception e) {
-            Log.e(TAG, "File write failed");
-        }
-
-    }
-
-    /* A helper function for delete(). For a given key, a storage entry is
-     * deleted. If the key is either '@' or '*', all local entries are erased.
-     */
-    private int remove(String key) {
-
-        if(key.equals("@") || key.equals("*")) {
-            String[] list = getContext().fileList();
-            for(int i = 0; i < list.length; i++) {
-                getContext().deleteFile(list[0]);
-            }
-        }
-        else {
-            try {
-                getContext().openFileInput(key);
-                getContext().deleteFile(key);
-
-            } catch (FileNotFoundException e) {
-                Log.e(TAG, "No file to delete");
-                return 0;
-            }
-        }
-
-        return 1;
-    }
-
-    /* The local query helper function to return a stored value (or all values,
-     * provided the key is either '@' or '*') on the device. The key-value pair
-     * is returned as a MatrixCursor.
-     */
-    private Cursor get(String key) {
-
-        String[] columns = {"key", "value"};
-        MatrixCursor cursor = new MatrixCursor(columns);
-
-        String value;
-        FileInputStream inputStream;
-
-        if(key.equals("@") || key.equals("*")) {
-            Log.v(TAG, "STARTING FULL QUERY ON NODE " + _local);
-            String[] list = getContext().fileList();
-            for(int i = 0; i < list.length; i++) {
-                try {
-                    inputStream = getContext().openFileInput(list[i]);
-                    BufferedReader input = new BufferedReader(new InputStreamReader(inputStream));
-                    value = input.readLine();
-
-                    String[] row= {list[i], value};
-                    cursor.addRow(row);
-
-                    inputStream.close();
-                } catch (Exception e) {
-                    Log.e(TAG, "File write failed");
-                }
-            }
-        }
-        else {
-            try {
-                inputStream = getContext().openFileInput(key);
-                BufferedReader input = new BufferedReader(new InputStreamReader(inputStream));
-                value = input.readLine();
-
-                String[] row= {key, value};
+            return new RingCursor(_pages, DhtNode.PAGE_SIZE);
+        }
+        if(key.equals("#metrics")) {
+            String[] columns = {"key", "value"};
+            MatrixCursor cursor = new MatrixCursor(columns);
+            List<String> names = new ArrayList<String>();
+            List<String> values = new ArrayList<String>();
+            String node = (selectionArgs != null && selectionArgs.length > 0) ? selectionArgs[0] : null;
+            _node.metrics(node, names, values);
+            for(int i = 0; i < names.size(); i++) {
+                String[] row = {names.get(i), values.get(i)};
                 cursor.addRow(row);
-
-                inputStream.close();
-            } catch (Exception e) {
-                Log.e(TAG, "File write failed");
             }
+            return cursor;
         }
 
-        MatrixCursor backup = cursor;
-        if (cursor.moveToFirst()){
-            do{
-                String k = cursor.getString(cursor.getColumnIndex("key"));
-                String v = cursor.getString(cursor.getColumnIndex("value"));
-                Log.v(TAG, "querying " + k + " --- " + v);
-            }while(cursor.moveToNext());
+        DhtNode.Consistency level = DhtNode.READ_CONSISTENCY;
+        if(selectionArgs != null && selectionArgs.length > 0) {
+            level = DhtNode.Consistency.valueOf(selectionArgs[0].toUpperCase());
         }
-
-        cursor = backup;
-        return cursor;
-    }
-
-    // Helper method to set the correct Uri
-    private Uri build(){
-        Uri.Builder uriBuilder = new Uri.Builder();
-        uriBuilder.scheme("content");
-        uriBuilder.authority("edu.buffalo.cse.cse486586.simpledht.provider");
-        return uriBuilder.build();
-    }
-
-    // Used to generate a SHA-1 hash of a given string
-    private String genHash(String input) throws NoSuchAlgorithmException {
-        MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
-        byte[] sha1Hash = sha1.digest(input.getBytes());
-        Formatter formatter = new Formatter();
-        for (byte b : sha1Hash) {
-            formatter.format("%02x", b);
+        List<String> keys = new ArrayList<String>(1);
+        List<byte[]> values = new ArrayList<byte[]>(1);
+        ByteBuffer value = _node.query(key, level);
+        if(value != null) {
+            keys.add(key);
+            values.add(Message.toArray(value));
         }
-        return formatter.toString();
+        return new ValueCursor(keys, values);
     }
 
-    /***
-     * ServerTask is an AsyncTask to handle incoming messages. All functionality
-     * is performed in the background on a seperte thread to keep the main program
-     * functioning. A ServerSocket is used to fetch TCP messages (and continuously
-     * loop through looking for them) from other AVDs. Once a message is found,
-     * it is broken apart and the sent operation is performed (between insert,
-     * delete, query, join, and join_resp).
-     */
-    private class ServerTask extends AsyncTask<ServerSocket, String, Void> {
+    // The source of the rows of a '*' query, see DhtNode.count() and DhtNode.page()
+    private final RingCursor.Source _pages = new RingCursor.Source() {
 
         @Override
-        protected Void doInBackground(ServerSocket... sockets) {
-
-            ServerSocket serverSocket = sockets[0];
-            Socket socket = null;
-
-            do {
-                try {
-
-                    socket = serverSocket.accept();
-                    DataInputStream receive = new DataInputStream(socket.getInputStream());
-
-                    String[] reception = receive.readUTF().split(":::");
-                    String op = reception[0];
-                    String remotePort = reception[1];
-                    String localPort = reception[2];
-                    String key = reception[3];
-                    String value = reception[4];
-
-                    // Insert and delete will have a node perform a local call on either function
-                    if(op.equals("insert")) {
-                        ContentValues cv = new ContentValues();
-                        cv.put("key", key);
-                        cv.put("value", value);
-                        insert(_uri, cv);
-                    }
-                    else if(op.equals("delete")) {
-                        delete(_uri, key, null);
-                    }
-
-                    /* If a query call is received, the local query() is called and
-                     * result is broken apart and sent via string message back to
-                     * the sender
-                     */
-                    else if(op.equals("query")) {
-                        Cursor cursor = query(_uri, null, key, null, value);
-                        if(cursor.moveToFirst()) {
-                            String val = cursor.getString(cursor.getColumnIndex("value"));
-                            String kee = cursor.getString(cursor.getColumnIndex("key"));
-                            if (key.equals("*")) {
-                                while (cursor.moveToNext()) {
-                                    String kee1 = cursor.getString(cursor.getColumnIndex("key"));
-                                    kee = kee + "~~~" + kee1;
-                                    String val1 = cursor.getString(cursor.getColumnIndex("value"));
-                                    val = val + "~~~" + val1;
-                                }
-                                send(socket, "query_resp", localPort, remotePort, kee, val);
-                            } else {
-                                val = cursor.getString(cursor.getColumnIndex("value"));
-                                send(socket, "query_resp", localPort, remotePort, key, val);
-                            }
-                        }
-                        else {
-                            send(socket, "query_resp", localPort, remotePort, "...", "...");
-                        }
-                    }
-
-                    /* A join operation checks the local successor and predecessor
-                     * hashes to determine a joining nodes position on the ring.
-                     * If the node doesn't fit as a predecessor or successor to the
-                     * current AVD, a join message is sent forward or back on the
-                     * ring accordingly. If the predecessor node is changed, all
-                     * stored values are queried and reinserted to the ring to even
-                     * out and correct storage to new nodes.
-                     */
-                    else if(op.equals("join")) {
-                        boolean resort = false;
-                        if(_predecessor == null) {
-                            resort = true;
-                            _predecessor = key;
-                            _successor = key;
-                            Log.v(TAG, "new nodes are " + _local + " : " + _predecessor + " - " + _successor);
-                            _portP = remotePort;
-                            _portS = remotePort;
-                            send(null, "join_resp", localPort, remotePort, _local, _local);
-                        }
-                        else {
-                            String hash = null;
-                            try {
-                                hash = genHash(key);
-                            } catch (NoSuchAlgorithmException e) {
-                                Log.e(TAG, "Can't hash node");
-                            }
-                            int comp = hash.compareTo(_hashL);
-                            int comp_local = _hashL.compareTo(_hashS);
-                            int comp_local2 = _hashL.compareTo(_hashP);
-                            int comp_succ = hash.compareTo(_hashS);
-                            int comp_pred = hash.compareTo(_hashP);
-
-                            if(comp > 0) {
-                                if((comp_local > 0) || (comp_succ < 0)) {
-                                    send(null, "join_resp", localPort, remotePort, _local, _successor);
-                                    send(null, "join_resp", localPort, _portS, key, "---");
-
-                                    _successor = key;
-                                    _portS = String.valueOf(Integer.parseInt(_successor) * 2);
-                                    Log.v(TAG, "new nodes are " + _local + " : " + _predecessor + " - " + _successor);
-                                }
-                                else {
-                                    send(null, "join", remotePort, _portS, key, "---");
-                                }
-                            }
-                            else {
-                                if((comp_local2 < 0) || (comp_pred > 0)) {
-                                    send(null, "join_resp", localPort, remotePort, _predecessor, _local);
-                                    send(null, "join_resp", localPort, _portP, "---", key);
-
-                                    resort = true;
-                                    _predecessor = key;
-                                    _portP = String.valueOf(Integer.parseInt(_predecessor) * 2);
-                                    Log.v(TAG, "new nodes are " + _local + " : " + _predecessor + " - " + _successor);
-                                }
-                                else {
-                                    send(null, "join", remotePort, _portP, key, "---");
-                                }
-                            }
-                        }
-
-                        try {
-                            _hashP = genHash(_predecessor);
-                            _hashS = genHash(_successor);
-                        } catch (NoSuchAlgorithmException e) {
-                            Log.e(TAG, "Can't hash node");
-                        }
-
-                        if(resort) {
-                            Cursor cursor = query(_uri, null, "@", null, null);
-                            delete(_uri, "@", null);
-                            if(cursor.moveToFirst()) {
-                                do {
-                                    String val = cursor.getString(cursor.getColumnIndex("value"));
-                                    String kee = cursor.getString(cursor.getColumnIndex("key"));
-                                    ContentValues cv = new ContentValues();
-                                    cv.put("key", kee);
-                                    cv.put("value", val);
-                                    insert(_uri, cv);
-                                } while (cursor.moveToNext());
-                            }
-                        }
-
-                    }
-
-                    /* A determined position from a newly joined node will send a response
-                     * to effected nodes to update their own pointers. If the predecessor
-                     * node is changed, all stored values are queried and reinserted to the
-                     * ring to even out and correct storage to new nodes.
-                     */
-                    else if(op.equals("join_resp")) {
-                        boolean resort = false;
-                        if(!key.equals("---")) {
-                            resort = true;
-                            _predecessor = key;
-                            _portP = String.valueOf(Integer.parseInt(_predecessor) * 2);
-                        }
-                        if(!value.equals("---")) {
-                            _successor = value;
-                            _portS = String.valueOf(Integer.parseInt(_successor) * 2);
-                        }
-
-                        Log.v(TAG, "new nodes are " + _local + " : " + _predecessor + " - " + _successor);
-
-                        try {
-                            _hashP = genHash(_predecessor);
-                            _hashS = genHash(_successor);
-                        } catch (NoSuchAlgorithmException e) {
-                            Log.e(TAG, "Can't hash node");
-                        }
-
-                        if(resort) {
-                            Cursor cursor = query(_uri, null, "@", null, null);
-                            delete(_uri, "@", null);
-                            if(cursor.moveToFirst()) {
-                                do {
-                                    String val = cursor.getString(cursor.getColumnIndex("value"));
-                                    String kee = cursor.getString(cursor.getColumnIndex("key"));
-                                    ContentValues cv = new ContentValues();
-                                    cv.put("key", kee);
-                                    cv.put("value", val);
-                                    insert(_uri, cv);
-                                } while (cursor.moveToNext());
-                            }
-                        }
-
-                    }
-
-                } catch (IOException e) {
-                    Log.e(TAG, "ServerSocket IOException");
-                }
-
-            } while(!socket.isInputShutdown());
-
-            return null;
-
+        public void count(List<String> nodes, List<Integer> counts) {
+            _node.count(nodes, counts);
         }
 
-    }
-
-
-    /***
-     * ClientTask is an AsyncTask that sends a message to a remote port.
-     */
-    private class ClientTask extends AsyncTask<String, Void, Void> {
-
         @Override
-        protected Void doInBackground(String... msgs) {
-
-            // Declare message parameters
-            String op = msgs[0];
-            String localPort = msgs[1];
-            String remotePort = msgs[2];
-            String key = msgs[3];
-            String value = msgs[4];
-
-            Log.v(TAG, "sending " + key + " from " + _local + " to " + remotePort);
-            send(null, op, localPort, remotePort, key, value);
-            return null;
+        public String page(String node, String token, List<String> keys, List<byte[]> values) {
+            return _node.page(node, token, keys, values);
         }
+    };
+
+    // Method not defined
+    @Override
+    public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        return 0;
     }
 
 }
@@ -0,0 +1,40 @@
+package edu.buffalo.cse.cse486586.simpledht;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/***
+ * The Storage interface is the local key-value store behind the provider's
+ * store(), get() and remove() helpers. Values are raw bytes, stored and
+ * returned as given. Implementations must be safe to call from several
+ * threads at once.
+ */
+interface Storage {
+
+    // Stores a value, replacing any earlier value of the key
+    void put(String key, byte[] value) throws IOException;
+
+    // Stores several values at once, with a single write where the store allows it
+    void putAll(List<String> keys, List<byte[]> values) throws IOException;
+
+    /* Returns the value of the key, or null if it isn't stored. The buffer may
+     * be a view of the store itself, such as a mapped file, and must not be
+     * written to.
+     */
+    ByteBuffer get(String key) throws IOException;
+
+    // Removes the key, returning false if it wasn't stored
+    boolean remove(String key) throws IOException;
+
+    // Removes every key, returning how many were stored
+    int clear() throws IOException;
+
+    // Returns a snapshot of all stored keys in no particular order
+    List<String> keys() throws IOException;
+
+    // Returns the number of stored keys
+    int size() throws IOException;
+
+    void close() throws IOException;
+}
@@ -0,0 +1,118 @@
+package edu.buffalo.cse.cse486586.simpledht;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.database.AbstractCursor;
+
+/***
+ * The ValueCursor class is a cursor of key and value rows whose values are
+ * raw bytes. getBlob() returns a value as stored and getString() decodes it
+ * as UTF-8, so text values read as before and binary values pass through
+ * untouched. getType() reports a value as a string if it is valid UTF-8 and
+ * as a blob otherwise, which decides how it crosses a process boundary.
+ */
+class ValueCursor extends AbstractCursor {
+
+    private static final String[] COLUMNS = {"key", "value"};
+
+    // The rows held, starting at row _first of the cursor
+    protected final List<String> _keys;
+    protected final List<byte[]> _values;
+    protected int _first;
+
+    ValueCursor() {
+        this(new ArrayList<String>(), new ArrayList<byte[]>());
+    }
+
+    ValueCursor(List<String> keys, List<byte[]> values) {
+        _keys = keys;
+        _values = values;
+    }
+
+    @Override
+    public int getCount() {
+        return _keys.size();
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return COLUMNS;
+    }
+
+    @Override
+    public byte[] getBlob(int column) {
+        int row = mPos - _first;
+        if(row < 0 || row >= _keys.size()) {
+            return null;
+        }
+        return (column == 0) ? _keys.get(row).getBytes(Message.UTF8) : _values.get(row);
+    }
+
+    @Override
+    public String getString(int column) {
+        int row = mPos - _first;
+        if(row < 0 || row >= _keys.size()) {
+            return null;
+        }
+        if(column == 0) {
+            return _keys.get(row);
+        }
+        byte[] value = _values.get(row);
+        return (value == null) ? null : new String(value, Message.UTF8);
+    }
+
+    @Override
+    public int getType(int column) {
+        byte[] value = getBlob(column);
+        if(value == null) {
+            return FIELD_TYPE_NULL;
+        }
+        return (column == 0 || isText(value)) ? FIELD_TYPE_STRING : FIELD_TYPE_BLOB;
+    }
+
+    @Override
+    public short getShort(int column) {
+        return Short.parseShort(getString(column));
+    }
+
+    @Override
+    public int getInt(int column) {
+        return Integer.parseInt(getString(column));
+    }
+
+    @Override
+    public long getLong(int column) {
+        return Long.parseLong(getString(column));
+    }
+
+    @Override
+    public float getFloat(int column) {
+        return Float.parseFloat(getString(column));
+    }
+
+    @Override
+    public double getDouble(int column) {
+        return Double.parseDouble(getString(column));
+    }
+
+    @Override
+    public boolean isNull(int column) {
+        return getBlob(column) == null;
+    }
+
+    private static boolean isText(byte[] value) {
+        try {
+            Message.UTF8.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPORT)
+                    .onUnmappableCharacter(CodingErrorAction.REPORT)
+                    .decode(ByteBuffer.wrap(value));
+            return true;
+        } catch (CharacterCodingException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package edu.buffalo.cse.cse486586.simpledht;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/***
+ * The VirtualRing class maps positions on the ring to the physical nodes that
+ * own them. Every known node takes a fixed number of virtual positions, the
+ * first at the hash of its id (its Chord position) and the rest at the hashes
+ * of "id#1", "id#2" and so on, and a key belongs to the node holding the first
+ * position at or after its hash. More positions per node split the ring into
+ * more, smaller arcs, which evens out the share of keys every node gets.
+ *
+ * Nodes are added as they join and removed once they are found dead. Each
+ * change builds a new sorted table that is published with a single write, so
+ * lookups never lock.
+ */
+class VirtualRing {
+
+    static final int REPORT_NODES = 16;
+
+    private final int _virtual;
+    private volatile Table _table = new Table(new RingId[0], new String[0], new ArrayList<String>());
+
+    VirtualRing(int virtual) {
+        _virtual = Math.max(virtual, 1);
+    }
+
+    // Returns the ring position of the given virtual node of a node
+    static RingId position(String node, int i) {
+        return RingId.of((i == 0) ? node : node + "#" + i);
+    }
+
+    // Adds a node and its virtual positions, returning false if it was already known
+    synchronized boolean add(String node) {
+
+        Table table = _table;
+        if(node == null || table.nodes.contains(node)) {
+            return false;
+        }
+
+        // Only the positions of the new node are sorted, then merged into the sorted table
+        RingId[] added = new RingId[_virtual];
+        for(int i = 0; i < _virtual; i++) {
+            added[i] = position(node, i);
+        }
+        Arrays.sort(added);
+        int count = table.positions.length + _virtual;
+        RingId[] sortedPositions = new RingId[count];
+        String[] sortedOwners = new String[count];
+        for(int i = 0, a = 0, t = 0; i < count; i++) {
+            if(t == table.positions.length || (a < _virtual && added[a].compareTo(table.positions[t]) < 0)) {
+                sortedPositions[i] = added[a++];
+                sortedOwners[i] = node;
+            }
+            else {
+                sortedPositions[i] = table.positions[t];
+                sortedOwners[i] = table.owners[t++];
+            }
+        }
+
+        List<String> nodes = new ArrayList<String>(table.nodes);
+        nodes.add(node);
+        _table = new Table(sortedPositions, sortedOwners, nodes);
+        return true;
+    }
+
+    // Removes a node and its virtual positions, returning false if it wasn't known
+    synchronized boolean remove(String node) {
+
+        Table table = _table;
+        if(node == null || !table.nodes.contains(node)) {
+            return false;
+        }
+
+        // The table stays sorted with the positions of the node left out
+        RingId[] positions = new RingId[table.positions.length];
+        String[] owners = new String[table.positions.length];
+        int count = 0;
+        for(int i = 0; i < table.positions.length; i++) {
+            if(!table.owners[i].equals(node)) {
+                positions[count] = table.positions[i];
+                owners[count] = table.owners[i];
+                count++;
+            }
+        }
+
+        List<String> nodes = new ArrayList<String>(table.nodes);
+        nodes.remove(node);
+        _table = new Table(Arrays.copyOf(positions, count), Arrays.copyOf(owners, count), nodes);
+        return true;
+    }
+
+    // Returns the node owning the given hash, or null while no node is known
+    String owner(RingId hash) {
+        Table table = _table;
+        if(table.positions.length == 0) {
+            return null;
+        }
+        int i = Arrays.binarySearch(table.positions, hash);
+        if(i < 0) {
+            i = -i - 1;
+        }
+        return table.owners[(i == table.positions.length) ? 0 : i];
+    }
+
+    /* Returns the nodes holding replicas of the given hash, the owner first and
+     * then the owners of the following positions that aren't in the list yet,
+     * up to count nodes or as many as are known.
+     */
+    List<String> replicas(RingId hash, int count) {
+        Table table = _table;
+        List<String> replicas = new ArrayList<String>(count);
+        int length = table.positions.length;
+        if(length == 0) {
+            return replicas;
+        }
+        int start = Arrays.binarySearch(table.positions, hash);
+        if(start < 0) {
+            start = -start - 1;
+        }
+        count = Math.min(count, table.nodes.size());
+        for(int i = 0; i < length && replicas.size() < count; i++) {
+            String owner = table.owners[(start + i) % length];
+            if(!replicas.contains(owner)) {
+                replicas.add(owner);
+            }
+        }
+        return replicas;
+    }
+
+    /* Returns every virtual position in ring order. The arc ending at a
+     * position, from the position before it, is owned by the owner of that
+     * position, and replicas() of the position gives all its replicas.
+     */
+    List<RingId> positions() {
+        return Collections.unmodifiableList(Arrays.asList(_table.positions));
+    }
+
+    // Returns every known node in the order they were added
+    List<String> nodes() {
+        return Collections.unmodifiableList(_table.nodes);
+    }
+
+    /* Returns the fraction of the ring each node owns, which is the share of
+     * keys it can expect to hold. Arcs are measured on the top 64 bits of the
+     * positions, well past the precision of the result.
+     */
+    Map<String, Double> shares() {
+
+        Table table = _table;
+        Map<String, Integer> index = new HashMap<String, Integer>();
+        for(String node : table.nodes) {
+            index.put(node, index.size());
+        }
+        // Summed in place, as this runs over every position each time the ring changes
+        double[] sums = new double[index.size()];
+        int count = table.positions.length;
+        for(int i = 0; i < count; i++) {
+            long arc = table.positions[i].hi - table.positions[(i + count - 1) % count].hi;
+            sums[index.get(table.owners[i])] += (count == 1) ? 1.0 : (arc >>> 11) * 0x1.0p-53;
+        }
+        Map<String, Double> shares = new LinkedHashMap<String, Double>();
+        for(String node : table.nodes) {
+            shares.put(node, sums[index.get(node)]);
+        }
+        return shares;
+    }
+
+    // Returns the largest share of any node divided by the mean share, 1.0 being perfectly even
+    static double skew(Map<String, Double> shares) {
+        double max = 0, total = 0;
+        for(double share : shares.values()) {
+            max = Math.max(max, share);
+            total += share;
+        }
+        return (total == 0) ? 1.0 : max / (total / shares.size());
+    }
+
+    /* Describes the share of every node and the resulting skew. A ring of
+     * more than REPORT_NODES nodes is described by its smallest and largest
+     * share instead, as nodes log the report every time the ring changes.
+     */
+    String report() {
+        Map<String, Double> shares = shares();
+        StringBuilder builder = new StringBuilder();
+        if(shares.size() > REPORT_NODES) {
+            builder.append(shares.size()).append(" nodes owning ")
+                    .append(String.format("%.2f%% to %.2f%%", 100 * Collections.min(shares.values()),
+                            100 * Collections.max(shares.values()))).append(", ");
+        }
+        else {
+            for(Map.Entry<String, Double> share : shares.entrySet()) {
+                builder.append(share.getKey()).append(' ')
+                        .append(String.format("%.1f%%", 100 * share.getValue())).append(", ");
+            }
+        }
+        builder.append(_virtual).append(" virtual nodes each, skew ")
+                .append(String.format("%.2f", skew(shares)));
+        return builder.toString();
+    }
+
+    /***
+     * An immutable, sorted snapshot of all positions and their owners.
+     */
+    private static final class Table {
+
+        final RingId[] positions;
+        final String[] owners;
+        final List<String> nodes;
+
+        Table(RingId[] positions, String[] owners, List<String> nodes) {
+            this.positions = positions;
+            this.owners = owners;
+            this.nodes = nodes;
+        }
+    }
+}